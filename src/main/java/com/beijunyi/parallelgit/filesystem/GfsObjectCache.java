@@ -0,0 +1,214 @@
+package com.beijunyi.parallelgit.filesystem;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.beijunyi.parallelgit.utils.io.TreeSnapshot;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+public class GfsObjectCache {
+
+  public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+  public static final int DEFAULT_MAX_BLOB_SIZE = 16 * 1024;
+
+  private static final int ENTRY_OVERHEAD = 64;
+  private static final Map<Repository, GfsObjectCache> CACHES = new WeakHashMap<>();
+
+  private final LinkedHashMap<ObjectId, CachedObject> objects = new LinkedHashMap<>(256, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private volatile long maxWeight;
+  private volatile int maxBlobSize;
+  private long weight = 0;
+
+  public GfsObjectCache(long maxWeight, int maxBlobSize) {
+    this.maxWeight = maxWeight;
+    this.maxBlobSize = maxBlobSize;
+  }
+
+  public GfsObjectCache() {
+    this(DEFAULT_MAX_WEIGHT, DEFAULT_MAX_BLOB_SIZE);
+  }
+
+  @Nonnull
+  public static GfsObjectCache forRepository(Repository repo) {
+    synchronized(CACHES) {
+      GfsObjectCache ret = CACHES.get(repo);
+      if(ret == null) {
+        ret = new GfsObjectCache();
+        CACHES.put(repo, ret);
+      }
+      return ret;
+    }
+  }
+
+  public static void release(Repository repo) {
+    GfsObjectCache removed;
+    synchronized(CACHES) {
+      removed = CACHES.remove(repo);
+    }
+    if(removed != null)
+      removed.clear();
+  }
+
+  @Nullable
+  public TreeSnapshot getTree(ObjectId id) {
+    CachedObject ret = get(id);
+    return ret != null && ret.value instanceof TreeSnapshot ? (TreeSnapshot) ret.value : null;
+  }
+
+  public void putTree(TreeSnapshot tree) {
+    put(tree.getId(), tree, weigh(tree));
+  }
+
+  @Nullable
+  public byte[] getBlob(ObjectId id) {
+    CachedObject ret = get(id);
+    return ret != null && ret.value instanceof byte[] ? (byte[]) ret.value : null;
+  }
+
+  public boolean isCacheableBlob(long size) {
+    return size <= maxBlobSize;
+  }
+
+  public void putBlob(ObjectId id, byte[] bytes) {
+    if(isCacheableBlob(bytes.length))
+      put(id, bytes, ENTRY_OVERHEAD + bytes.length);
+  }
+
+  public synchronized void clear() {
+    objects.clear();
+    weight = 0;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public void setMaxWeight(long maxWeight) {
+    this.maxWeight = maxWeight;
+    synchronized(this) {
+      evict();
+    }
+  }
+
+  public int getMaxBlobSize() {
+    return maxBlobSize;
+  }
+
+  public void setMaxBlobSize(int maxBlobSize) {
+    this.maxBlobSize = maxBlobSize;
+  }
+
+  @Nonnull
+  public synchronized Stats getStats() {
+    return new Stats(hits.get(), misses.get(), evictions.get(), objects.size(), weight, maxWeight);
+  }
+
+  @Nullable
+  private CachedObject get(ObjectId id) {
+    CachedObject ret;
+    synchronized(this) {
+      ret = objects.get(id);
+    }
+    if(ret != null)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    return ret;
+  }
+
+  private synchronized void put(ObjectId id, Object value, long objectWeight) {
+    if(objectWeight > maxWeight)
+      return;
+    CachedObject previous = objects.put(id.copy(), new CachedObject(value, objectWeight));
+    if(previous != null)
+      weight -= previous.weight;
+    weight += objectWeight;
+    evict();
+  }
+
+  private void evict() {
+    Iterator<CachedObject> it = objects.values().iterator();
+    while(weight > maxWeight && it.hasNext()) {
+      weight -= it.next().weight;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private static long weigh(TreeSnapshot tree) {
+    return ENTRY_OVERHEAD + tree.getRawSize() + 4L * tree.size();
+  }
+
+  private static class CachedObject {
+
+    private final Object value;
+    private final long weight;
+
+    private CachedObject(Object value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  public static class Stats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final int objectCount;
+    private final long weight;
+    private final long maxWeight;
+
+    private Stats(long hitCount, long missCount, long evictionCount, int objectCount, long weight, long maxWeight) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.evictionCount = evictionCount;
+      this.objectCount = objectCount;
+      this.weight = weight;
+      this.maxWeight = maxWeight;
+    }
+
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    public long getMissCount() {
+      return missCount;
+    }
+
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    public int getObjectCount() {
+      return objectCount;
+    }
+
+    public long getWeight() {
+      return weight;
+    }
+
+    public long getMaxWeight() {
+      return maxWeight;
+    }
+
+    public double getHitRate() {
+      long requests = hitCount + missCount;
+      return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount
+               + ", objects=" + objectCount + ", weight=" + weight + "/" + maxWeight;
+    }
+  }
+
+}
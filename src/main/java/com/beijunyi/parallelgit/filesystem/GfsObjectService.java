@@ -3,6 +3,9 @@ package com.beijunyi.parallelgit.filesystem;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.ClosedFileSystemException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.annotation.Nonnull;
 
 import com.beijunyi.parallelgit.utils.BlobUtils;
@@ -14,15 +17,17 @@ import static org.eclipse.jgit.lib.Constants.*;
 public class GfsObjectService implements Closeable {
 
   private final Repository repo;
-  private final ObjectReader reader;
-  private final ObjectInserter inserter;
+  private final ObjectReaderPool readers;
+  private final List<ObjectInserter> inserters = new CopyOnWriteArrayList<>();
+  private final ConcurrentLinkedDeque<ObjectInserter> idleInserters = new ConcurrentLinkedDeque<>();
+  private final GfsObjectCache cache;
 
   private volatile boolean closed = false;
 
   GfsObjectService(final Repository repo) {
     this.repo = repo;
-    this.reader = repo.newObjectReader();
-    this.inserter = repo.newObjectInserter();
+    this.readers = new ObjectReaderPool(repo);
+    this.cache = GfsObjectCache.forRepository(repo);
   }
 
   @Nonnull
@@ -30,19 +35,20 @@ public class GfsObjectService implements Closeable {
     return repo;
   }
 
+  @Nonnull
+  public GfsObjectCache getCache() {
+    return cache;
+  }
+
   @Nonnull
   public ObjectLoader open(AnyObjectId objectId) throws IOException {
     checkClosed();
-    synchronized(reader) {
-      return reader.open(objectId);
-    }
+    return readers.withReader(reader -> reader.open(objectId));
   }
 
   public boolean hasObject(AnyObjectId objectId) throws IOException {
     checkClosed();
-    synchronized(reader) {
-      return reader.has(objectId);
-    }
+    return readers.withReader(reader -> reader.has(objectId));
   }
 
   @Nonnull
@@ -57,29 +63,51 @@ public class GfsObjectService implements Closeable {
   @Nonnull
   public BlobSnapshot readBlob(ObjectId id) throws IOException {
     checkClosed();
-    synchronized(reader) {
-      return BlobUtils.readBlob(id, reader);
-    }
+    byte[] cached = cache.getBlob(id);
+    if(cached != null)
+      return BlobSnapshot.wrap(id, cached);
+    return readers.withReader(reader -> {
+      ObjectLoader loader = reader.open(id, OBJ_BLOB);
+      if(loader.isLarge() || !cache.isCacheableBlob(loader.getSize()))
+        return BlobSnapshot.load(id, readers);
+      byte[] bytes = loader.getCachedBytes();
+      cache.putBlob(id, bytes);
+      return BlobSnapshot.wrap(id, bytes);
+    });
   }
 
   public long getBlobSize(ObjectId id) throws IOException {
     checkClosed();
-    synchronized(reader) {
-      return BlobUtils.getBlobSize(id, reader);
-    }
+    byte[] cached = cache.getBlob(id);
+    if(cached != null)
+      return cached.length;
+    return readers.withReader(reader -> BlobUtils.getBlobSize(id, reader));
   }
 
   @Nonnull
   public TreeSnapshot readTree(ObjectId id) throws IOException {
     checkClosed();
-    synchronized(reader) {
-      return TreeSnapshot.load(id, reader);
-    }
+    TreeSnapshot ret = cache.getTree(id);
+    if(ret != null)
+      return ret;
+    ret = readers.withReader(reader -> TreeSnapshot.load(id, reader));
+    cache.putTree(ret);
+    return ret;
   }
 
+  // concurrent writers get an inserter each, all of them are flushed together by flush()
   @Nonnull
   public ObjectId write(ObjectSnapshot snapshot) throws IOException {
-    return snapshot.save(inserter);
+    ObjectInserter inserter = idleInserters.pollFirst();
+    if(inserter == null) {
+      inserter = repo.newObjectInserter();
+      inserters.add(inserter);
+    }
+    try {
+      return snapshot.save(inserter);
+    } finally {
+      idleInserters.offerFirst(inserter);
+    }
   }
 
   public void pullObject(ObjectId id, boolean flush, GfsObjectService sourceObjService) throws IOException {
@@ -105,8 +133,9 @@ public class GfsObjectService implements Closeable {
 
   public void flush() throws IOException {
     checkClosed();
-    synchronized(inserter) {
-      inserter.flush();
+    synchronized(inserters) {
+      for(ObjectInserter inserter : inserters)
+        inserter.flush();
     }
   }
 
@@ -114,16 +143,17 @@ public class GfsObjectService implements Closeable {
   public synchronized void close() {
     if(!closed) {
       closed = true;
-      reader.close();
-      inserter.close();
+      readers.close();
+      for(ObjectInserter inserter : inserters)
+        inserter.close();
       //repo.close();
     }
   }
 
   private void pullTree(ObjectId id, GfsObjectService sourceObjService) throws IOException {
     TreeSnapshot tree = sourceObjService.readTree(id);
-    for(GitFileEntry entry : tree.getData().values())
-      pullObject(entry.getId(), false, sourceObjService);
+    for(int i = 0; i < tree.size(); i++)
+      pullObject(tree.getEntry(i).getId(), false, sourceObjService);
     write(tree);
   }
 
@@ -1,11 +1,14 @@
 package com.beijunyi.parallelgit.filesystem;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -31,6 +34,7 @@ public class GitFileSystem extends FileSystem {
   private final GfsFileStore fileStore;
   private final GfsStatusProvider statusProvider;
 
+  private volatile ForkJoinPool flushPool;
   private boolean closed = false;
 
   public GitFileSystem(GfsConfiguration cfg, String sid) throws IOException {
@@ -165,11 +169,41 @@ public class GitFileSystem extends FileSystem {
   @Nonnull
   public ObjectId flush() throws IOException {
     RootNode root = fileStore.getRoot();
-    ObjectId ret = root.getObjectId(true);
+    ObjectId ret;
+    ForkJoinPool pool = flushPool;
+    if(pool == null || !root.isDirty() && root.isPersisted())
+      ret = root.getObjectId(true);
+    else {
+      // dirty subtrees are hashed and inserted on the pool, see DirectoryNode.captureData
+      try {
+        ret = pool.invoke(ForkJoinTask.adapt(() -> {
+          try {
+            return root.getObjectId(true);
+          } catch(IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }));
+      } catch(UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
     objService.flush();
     return ret;
   }
 
+  // null (the default) flushes on the calling thread; flush blocks on object database I/O, so use a dedicated pool
+  @Nullable
+  public ForkJoinPool getFlushPool() {
+    return flushPool;
+  }
+
+  // the common pool is rejected: it is shared with unrelated work, so DirectoryNode never forks on it
+  public void setFlushPool(@Nullable ForkJoinPool flushPool) {
+    if(flushPool == ForkJoinPool.commonPool())
+      throw new IllegalArgumentException("The common pool can't be used to flush, use a dedicated pool");
+    this.flushPool = flushPool;
+  }
+
   public void updateOrigin(ObjectId rootTree) throws IOException {
     RootNode root = fileStore.getRoot();
     root.updateOrigin(rootTree);
@@ -1,8 +1,12 @@
 package com.beijunyi.parallelgit.filesystem.io;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -17,8 +21,18 @@ import static com.beijunyi.parallelgit.utils.io.GitFileEntry.*;
 import static java.util.Collections.*;
 import static org.eclipse.jgit.lib.FileMode.TREE;
 
+/**
+ * Children of a loaded directory are backed by the tree it was loaded from. A child {@link Node} is only created
+ * when it is looked up or modified; {@code data} holds those nodes and {@code removed} the names of backing
+ * entries that were deleted. Untouched entries are listed, checked and written straight from the tree.
+ */
 public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
 
+  public static final int PARALLEL_FILES_CHUNK = 64;
+
+  private final Set<String> removed = ConcurrentHashMap.newKeySet();
+  private volatile TreeSnapshot base;
+
   protected DirectoryNode(ObjectId id, GfsObjectService objService) {
     super(id, TREE, objService);
   }
@@ -78,20 +92,19 @@ public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
   @Nonnull
   @Override
   protected Map<String, Node> loadData(TreeSnapshot snapshot) throws IOException {
-    Map<String, Node> ret = getDefaultData();
-    boolean updateOrigin = origin != null && origin.getId().equals(snapshot.getId());
-    for(Map.Entry<String, GitFileEntry> child : snapshot.getData().entrySet()) {
-      GitFileEntry entry = child.getValue();
-      Node node = Node.fromEntry(entry, this);
-      ret.put(child.getKey(), node);
-      if(updateOrigin)
-        node.updateOrigin(entry);
-    }
-    return ret;
+    removed.clear();
+    base = snapshot;
+    return getDefaultData();
   }
 
   @Override
   protected boolean isTrivial(Map<String, Node> data) throws IOException {
+    TreeSnapshot tree = base;
+    if(tree != null) {
+      for(int i = 0; i < tree.size(); i++)
+        if(isUntouched(tree.getName(i), data))
+          return false;
+    }
     boolean ret = true;
     for(Node child : data.values())
       if(!child.isTrivial()) {
@@ -103,7 +116,17 @@ public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
 
   @Nonnull
   protected TreeSnapshot captureData(Map<String, Node> data, boolean persist) throws IOException {
+    if(persist)
+      persistChildren(data.values());
     SortedMap<String, GitFileEntry> entries = new TreeMap<>();
+    TreeSnapshot tree = base;
+    if(tree != null) {
+      for(int i = 0; i < tree.size(); i++) {
+        String name = tree.getName(i);
+        if(isUntouched(name, data))
+          entries.put(name, tree.getEntry(i));
+      }
+    }
     for(Map.Entry<String, Node> child : data.entrySet()) {
       Node node = child.getValue();
       ObjectId id = node.getObjectId(persist);
@@ -119,10 +142,18 @@ public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
     DirectoryNode ret;
     if(isInitialized()) {
       ret = DirectoryNode.newDirectory(parent);
+      TreeSnapshot tree = base;
+      if(tree != null) {
+        ret.base = tree;
+        ret.removed.addAll(removed);
+        for(int i = 0; i < tree.size(); i++)
+          if(isUntouched(tree.getName(i), data))
+            parent.getObjectService().pullObject(tree.getEntry(i).getId(), objService);
+      }
       for(Map.Entry<String, Node> child : data.entrySet()) {
         String name = child.getKey();
         Node node = child.getValue();
-        ret.addChild(name, node.clone(ret), false);
+        ret.addChild(name, node.clone(ret), true);
       }
     } else if(id != null) {
       ret = DirectoryNode.fromTree(id, parent);
@@ -134,39 +165,65 @@ public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
 
   @Nonnull
   public List<String> listChildren() throws IOException {
-    List<String> ret = new ArrayList<>(getData().keySet());
-    Collections.sort(ret);
-    return unmodifiableList(ret);
+    Map<String, Node> data = getData();
+    SortedSet<String> ret = new TreeSet<>(data.keySet());
+    TreeSnapshot tree = base;
+    if(tree != null) {
+      for(int i = 0; i < tree.size(); i++) {
+        String name = tree.getName(i);
+        if(!removed.contains(name))
+          ret.add(name);
+      }
+    }
+    return unmodifiableList(new ArrayList<>(ret));
   }
 
   public boolean hasChild(String name) throws IOException {
-    return getData().containsKey(name);
+    Map<String, Node> data = getData();
+    return data.containsKey(name) || isUntouched(name, data);
   }
 
   @Nullable
   public Node getChild(String name) throws IOException {
-    return getData().get(name);
+    Node ret = getData().get(name);
+    return ret != null ? ret : materializeChild(name);
+  }
+
+  @Nullable
+  public ObjectId getChildObjectId(String name) throws IOException {
+    Map<String, Node> data = getData();
+    Node node = data.get(name);
+    if(node != null)
+      return node.getObjectId(false);
+    TreeSnapshot tree = base;
+    return isUntouched(name, data) ? tree.getChild(name).getId() : null;
   }
 
   public boolean addChild(String name, Node child, boolean replace) throws IOException {
-    if(!replace && getData().containsKey(name))
+    if(!replace && hasChild(name))
       return false;
     if(snapshot != null) {
       GitFileEntry origin = snapshot.getChild(name);
       if(!origin.isMissing()) child.updateOrigin(origin);
     }
     getData().put(name, child);
-    id = null;
-    invalidateParentCache();
+    markDirty();
     return true;
   }
 
   public boolean removeChild(String name) throws IOException {
-    Node removed = getData().remove(name);
-    if(removed != null) {
-      removed.exile();
-      id = null;
-      invalidateParentCache();
+    Map<String, Node> data = getData();
+    TreeSnapshot tree = base;
+    Node node;
+    boolean fromBase;
+    synchronized(this) {
+      node = data.remove(name);
+      fromBase = tree != null && tree.hasChild(name) && removed.add(name);
+    }
+    if(node != null)
+      node.exile();
+    if(node != null || fromBase) {
+      markDirty();
       return true;
     }
     return false;
@@ -184,14 +241,88 @@ public class DirectoryNode extends Node<TreeSnapshot, Map<String, Node>> {
     return new ConcurrentHashMap<>();
   }
 
+  // dirty subdirectories and chunks of dirty files are persisted as separate fork-join tasks when the flush runs
+  // on a dedicated pool (GitFileSystem.setFlushPool), otherwise the children are persisted on the calling thread
+  private static void persistChildren(Collection<Node> children) throws IOException {
+    if(!ForkJoinTask.inForkJoinPool() || ForkJoinTask.getPool() == ForkJoinPool.commonPool())
+      return;
+    List<RecursiveAction> tasks = new ArrayList<>();
+    List<Node> files = new ArrayList<>();
+    for(Node child : children) {
+      if(!child.isDirty() && child.isPersisted())
+        continue;
+      if(child.isDirectory())
+        tasks.add(persistTask(singletonList(child)));
+      else {
+        files.add(child);
+        if(files.size() == PARALLEL_FILES_CHUNK) {
+          tasks.add(persistTask(files));
+          files = new ArrayList<>();
+        }
+      }
+    }
+    if(!files.isEmpty())
+      tasks.add(persistTask(files));
+    if(tasks.size() < 2)
+      return;
+    try {
+      ForkJoinTask.invokeAll(tasks);
+    } catch(UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Nonnull
+  private static RecursiveAction persistTask(List<Node> nodes) {
+    return new RecursiveAction() {
+      @Override
+      protected void compute() {
+        try {
+          for(Node node : nodes)
+            node.getObjectId(true);
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  private boolean isUntouched(String name, Map<String, Node> data) {
+    TreeSnapshot tree = base;
+    return tree != null && tree.hasChild(name) && !removed.contains(name) && !data.containsKey(name);
+  }
+
+  @Nullable
+  private Node materializeChild(String name) throws IOException {
+    TreeSnapshot tree = base;
+    if(tree == null || !tree.hasChild(name))
+      return null;
+    synchronized(this) {
+      Node ret = data.get(name);
+      if(ret == null && !removed.contains(name)) {
+        ret = Node.fromEntry(tree.getChild(name), this);
+        TreeSnapshot originTree = snapshot;
+        if(originTree != null && originTree.getId().equals(origin.getId())) {
+          GitFileEntry entry = originTree.getChild(name);
+          if(!entry.isMissing()) ret.updateOrigin(entry);
+        }
+        data.put(name, ret);
+      }
+      return ret;
+    }
+  }
+
   @Nonnull
   private Set<String> updateChildrenOrigins() throws IOException {
     Set<String> ret = new HashSet<>();
-    for(Map.Entry<String, GitFileEntry> child : snapshot.getData().entrySet()) {
-      String name = child.getKey();
+    for(int i = 0; i < snapshot.size(); i++) {
+      String name = snapshot.getName(i);
       Node node = data.get(name);
-      if(node != null && !node.getOrigin().equals(child.getValue()))
-        node.updateOrigin(child.getValue());
+      if(node != null) {
+        GitFileEntry entry = snapshot.getEntry(i);
+        if(!node.getOrigin().equals(entry))
+          node.updateOrigin(entry);
+      }
       ret.add(name);
     }
     return unmodifiableSet(ret);
@@ -116,8 +116,7 @@ public class FileNode extends Node<BlobSnapshot, byte[]> {
   public void setBytes(byte[] bytes) {
     this.data = bytes;
     this.size = bytes.length;
-    id = null;
-    invalidateParentCache();
+    markDirty();
   }
 
   protected void checkFileMode(FileMode proposed) {
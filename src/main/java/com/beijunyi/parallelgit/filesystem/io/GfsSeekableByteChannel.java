@@ -20,9 +20,9 @@ public class GfsSeekableByteChannel implements SeekableByteChannel {
 
   GfsSeekableByteChannel(FileNode file, Collection<? extends OpenOption> options) throws IOException {
     this.file = file;
-    buffer = ByteBuffer.wrap(options.contains(TRUNCATE_EXISTING) ? new byte[0] : file.getData());
     readable = options.contains(READ);
     writable = options.contains(WRITE);
+    buffer = ByteBuffer.wrap(options.contains(TRUNCATE_EXISTING) ? new byte[0] : writable ? file.getData().clone() : file.getData());
     if(options.contains(APPEND)) buffer.position(buffer.limit());
   }
 
@@ -166,9 +166,9 @@ public class GfsTreeIterator extends WorkingTreeIterator {
     @Nonnull
     public static List<GfsTreeEntry> listChildren(DirectoryNode dir) throws IOException {
       List<GfsTreeEntry> ret = new ArrayList<>();
-      for(Map.Entry<String, Node> child : dir.getData().entrySet()) {
-        Node node = child.getValue();
-        if(!node.isTrivial()) ret.add(forNode(child.getKey(), node));
+      for(String name : dir.listChildren()) {
+        Node node = dir.getChild(name);
+        if(node != null && !node.isTrivial()) ret.add(forNode(name, node));
       }
       sort(ret, TreeEntryComparator.ASCENDING);
       return unmodifiableList(ret);
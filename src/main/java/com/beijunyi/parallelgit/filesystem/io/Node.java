@@ -24,6 +24,7 @@ public abstract class Node<Snapshot extends ObjectSnapshot, Data> {
   protected volatile DirectoryNode parent;
   protected volatile Snapshot snapshot;
   protected volatile ObjectId id;
+  protected volatile boolean persisted;
   protected volatile FileMode mode;
   protected volatile Data data;
 
@@ -36,6 +37,7 @@ public abstract class Node<Snapshot extends ObjectSnapshot, Data> {
   protected Node(ObjectId id, FileMode mode, GfsObjectService objService) {
     this.objService = objService;
     this.id = id;
+    this.persisted = true;
     this.mode = mode;
   }
 
@@ -82,15 +84,25 @@ public abstract class Node<Snapshot extends ObjectSnapshot, Data> {
     return TREE.equals(getMode());
   }
 
+  // a node whose id is set and persisted is clean: flush neither revisits it nor asks the repository for its object
   @Nonnull
   public ObjectId getObjectId(boolean persist) throws IOException {
-    if(id == null || persist && !objService.hasObject(id)) {
+    if(id == null || persist && !persisted && data != null) {
       Snapshot snapshot = takeSnapshot(persist);
       id = snapshot != null ? snapshot.getId() : zeroId();
+      persisted = persist;
     }
     return id;
   }
 
+  public boolean isDirty() {
+    return id == null;
+  }
+
+  public boolean isPersisted() {
+    return persisted;
+  }
+
   @Nonnull
   public GitFileEntry getOrigin() {
     return origin;
@@ -122,11 +134,16 @@ public abstract class Node<Snapshot extends ObjectSnapshot, Data> {
 
   @Nonnull
   protected Data getData() throws IOException {
-    if(data != null)
+    Data ret = data;
+    if(ret != null)
+      return ret;
+    synchronized(this) {
+      if(data == null) {
+        if(id == null) throw new IllegalStateException();
+        data = loadData(loadSnapshot(id));
+      }
       return data;
-    if(id == null) throw new IllegalStateException();
-    data = loadData(loadSnapshot(id));
-    return data;
+    }
   }
 
   protected boolean isTrivial() throws IOException {
@@ -166,16 +183,21 @@ public abstract class Node<Snapshot extends ObjectSnapshot, Data> {
   protected void reset(GitFileEntry entry) {
     checkFileMode(mode);
     this.id = entry.getId();
+    this.persisted = true;
     this.mode = entry.getMode();
     this.data = null;
     invalidateParentCache();
   }
 
+  protected void markDirty() {
+    id = null;
+    persisted = false;
+    invalidateParentCache();
+  }
+
   protected void invalidateParentCache() {
-    if(parent != null) {
-      parent.id = null;
-      parent.invalidateParentCache();
-    }
+    if(parent != null)
+      parent.markDirty();
   }
 
   protected void exile() {
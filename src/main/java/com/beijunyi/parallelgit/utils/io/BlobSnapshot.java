@@ -1,6 +1,6 @@
 package com.beijunyi.parallelgit.utils.io;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import javax.annotation.Nonnull;
@@ -13,20 +13,35 @@ import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 public class BlobSnapshot extends ObjectSnapshot<byte[]> {
 
   private final ObjectReader reader;
+  private final ObjectReaderPool readers;
 
   private BlobSnapshot(ObjectReader reader, @Nullable ObjectId id) {
     super(null, id);
     this.reader = reader;
+    this.readers = null;
+  }
+
+  private BlobSnapshot(ObjectReaderPool readers, ObjectId id) {
+    super(null, id);
+    this.reader = null;
+    this.readers = readers;
   }
 
   private BlobSnapshot(ObjectReader reader) {
-    this(null, null);
+    this(reader, null);
   }
 
 
   private BlobSnapshot(byte[] data) {
     super(data, null);
     reader = null;
+    readers = null;
+  }
+
+  private BlobSnapshot(ObjectId id, byte[] data) {
+    super(data, id);
+    reader = null;
+    readers = null;
   }
 
   @Nonnull
@@ -39,22 +54,33 @@ public class BlobSnapshot extends ObjectSnapshot<byte[]> {
   }
 
   private void loadData() throws IOException {
-    synchronized (reader) {
-      ObjectLoader loader = reader.open(id);
-      if (loader.getSize() > Integer.MAX_VALUE - 8) {
-        throw new IOException("Can't load object" + id + ": size is greater than can fit in a Java array");
+    if (readers != null) {
+      data = readers.withReader(this::readData);
+    } else {
+      synchronized (reader) {
+        data = readData(reader);
       }
-      int len = (int) loader.getSize();
-      data = new byte[len];
-      int offset = 0;
+    }
+  }
+
+  private byte[] readData(ObjectReader reader) throws IOException {
+    ObjectLoader loader = reader.open(id);
+    if (loader.getSize() > Integer.MAX_VALUE - 8) {
+      throw new IOException("Can't load object" + id + ": size is greater than can fit in a Java array");
+    }
+    int len = (int) loader.getSize();
+    byte[] bytes = new byte[len];
+    int offset = 0;
+    try (InputStream stream = loader.openStream()) {
       while (offset < len) {
-        int bytesRead = loader.openStream().read(data, offset, len - offset);
+        int bytesRead = stream.read(bytes, offset, len - offset);
         if (bytesRead <= 0) {
           throw new IOException("Unexpected EOF reading " + id);
         }
         offset += bytesRead;
       }
     }
+    return bytes;
   }
 
   @Nonnull
@@ -62,6 +88,11 @@ public class BlobSnapshot extends ObjectSnapshot<byte[]> {
     return new BlobSnapshot(reader, id);
   }
 
+  @Nonnull
+  public static BlobSnapshot load(ObjectId id, ObjectReaderPool readers) {
+    return new BlobSnapshot(readers, id);
+  }
+
   @Nonnull
   public static BlobSnapshot load(ObjectId id, Repository repo) throws IOException {
     try(ObjectReader reader = repo.newObjectReader()) {
@@ -74,6 +105,11 @@ public class BlobSnapshot extends ObjectSnapshot<byte[]> {
     return new BlobSnapshot(bytes);
   }
 
+  @Nonnull
+  public static BlobSnapshot wrap(ObjectId id, byte[] bytes) {
+    return new BlobSnapshot(id, bytes);
+  }
+
   @Nonnull
   @Override
   public ObjectId save(ObjectInserter inserter) throws IOException {
@@ -92,6 +128,12 @@ public class BlobSnapshot extends ObjectSnapshot<byte[]> {
   }
 
   public InputStream getInputStream() throws IOException {
+    if (data != null) {
+      return new ByteArrayInputStream(data);
+    }
+    if (readers != null) {
+      return readers.withReader(reader -> reader.open(id).openStream());
+    }
     synchronized (reader) {
       return reader.open(id).openStream();
     }
@@ -0,0 +1,88 @@
+package com.beijunyi.parallelgit.utils.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Hands out {@link ObjectReader}s to concurrent callers. A reader is used by one thread at a time and
+ * returned afterwards; up to {@code maxIdle} returned readers are kept for reuse, the rest are closed.
+ */
+public class ObjectReaderPool implements Closeable {
+
+  public static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+  private final Repository repo;
+  private final int maxIdle;
+  private final ConcurrentLinkedDeque<ObjectReader> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  private volatile boolean closed = false;
+
+  public ObjectReaderPool(Repository repo, int maxIdle) {
+    if(maxIdle < 0) throw new IllegalArgumentException("Invalid number of idle readers: " + maxIdle);
+    this.repo = repo;
+    this.maxIdle = maxIdle;
+  }
+
+  public ObjectReaderPool(Repository repo) {
+    this(repo, DEFAULT_MAX_IDLE);
+  }
+
+  public interface ReaderFunction<T> {
+    T apply(ObjectReader reader) throws IOException;
+  }
+
+  @Nonnull
+  public ObjectReader borrow() {
+    ObjectReader reader = idle.pollFirst();
+    if(reader != null) {
+      idleCount.decrementAndGet();
+      return reader;
+    }
+    return repo.newObjectReader();
+  }
+
+  public void release(ObjectReader reader) {
+    if(!closed && idleCount.incrementAndGet() <= maxIdle) {
+      idle.offerFirst(reader);
+      if(closed) drain();
+      return;
+    }
+    idleCount.decrementAndGet();
+    reader.close();
+  }
+
+  public <T> T withReader(ReaderFunction<T> f) throws IOException {
+    ObjectReader reader = borrow();
+    try {
+      return f.apply(reader);
+    } finally {
+      release(reader);
+    }
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    drain();
+  }
+
+  private void drain() {
+    ObjectReader reader;
+    while((reader = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      reader.close();
+    }
+  }
+
+}
@@ -1,36 +1,57 @@
 package com.beijunyi.parallelgit.utils.io;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
-import com.beijunyi.parallelgit.utils.TreeUtils;
 import org.eclipse.jgit.lib.*;
-import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.RawParseUtils;
 
 import static com.beijunyi.parallelgit.utils.io.GitFileEntry.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.unmodifiableSortedMap;
 import static org.eclipse.jgit.lib.Constants.OBJ_TREE;
+import static org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH;
 
+/**
+ * Keeps the canonical tree bytes and the offset of the terminating zero of every entry name. Children are looked up
+ * by binary search on the UTF-8 names and decoded only when asked for; the sorted map returned by
+ * {@link #getData()} is built on first use.
+ */
 public class TreeSnapshot extends ObjectSnapshot<SortedMap<String, GitFileEntry>> {
 
-  private TreeFormatter formatter;
+  private final byte[] raw;
+  private final int[] nameEnds;
 
-  private TreeSnapshot(SortedMap<String, GitFileEntry> data, @Nullable ObjectId id) {
-    super(unmodifiableSortedMap(data), id);
+  private TreeSnapshot(byte[] raw, ObjectId id) {
+    super(null, id);
+    this.raw = raw;
+    this.nameEnds = parse(raw);
   }
 
-  private TreeSnapshot(SortedMap<String, GitFileEntry> data) {
-    this(data, null);
+  @Nonnull
+  @Override
+  public synchronized SortedMap<String, GitFileEntry> getData() {
+    SortedMap<String, GitFileEntry> ret = data;
+    if(ret == null) {
+      ret = new TreeMap<>();
+      for(int i = 0; i < nameEnds.length; i++)
+        ret.put(getName(i), getEntry(i));
+      ret = unmodifiableSortedMap(ret);
+      data = ret;
+    }
+    return ret;
   }
 
   @Nonnull
   @Override
   public ObjectId save(ObjectInserter inserter) throws IOException {
-    return inserter.insert(format(data));
+    return inserter.insert(OBJ_TREE, raw);
   }
 
   @Override
@@ -40,27 +61,47 @@ public class TreeSnapshot extends ObjectSnapshot<SortedMap<String, GitFileEntry>
 
   @Nonnull
   @Override
-  protected byte[] toByteArray(SortedMap<String, GitFileEntry> stringGitFileEntrySortedMap) {
-    return format(data).toByteArray();
+  protected byte[] toByteArray(SortedMap<String, GitFileEntry> data) {
+    return raw;
+  }
+
+  public int size() {
+    return nameEnds.length;
+  }
+
+  public int getRawSize() {
+    return raw.length;
+  }
+
+  @Nonnull
+  public String getName(int index) {
+    return RawParseUtils.decode(UTF_8, raw, nameStart(index), nameEnds[index]);
+  }
+
+  @Nonnull
+  public GitFileEntry getEntry(int index) {
+    return newEntry(ObjectId.fromRaw(raw, nameEnds[index] + 1), FileMode.fromBits(parseMode(index)));
   }
 
   public boolean hasChild(String name) {
-    return data.containsKey(name);
+    return indexOf(name) >= 0;
   }
 
   @Nonnull
   public GitFileEntry getChild(String name) {
-    GitFileEntry entry = data.get(name);
-    return entry != null ? entry : missingEntry();
+    int index = indexOf(name);
+    return index >= 0 ? getEntry(index) : missingEntry();
+  }
+
+  public int indexOf(String name) {
+    byte[] key = Constants.encode(name);
+    int ret = search(key, false);
+    return ret >= 0 ? ret : search(key, true);
   }
 
   @Nonnull
   public static TreeSnapshot load(ObjectId id, ObjectReader reader) throws IOException {
-    SortedMap<String, GitFileEntry> ret = new TreeMap<>();
-    try(TreeWalk tw = TreeUtils.newTreeWalk(id, reader)) {
-      while(tw.next()) ret.put(tw.getNameString(), newEntry(tw));
-    }
-    return new TreeSnapshot(ret, id);
+    return new TreeSnapshot(reader.open(id, OBJ_TREE).getCachedBytes(Integer.MAX_VALUE), id.copy());
   }
 
   @Nonnull
@@ -72,20 +113,113 @@ public class TreeSnapshot extends ObjectSnapshot<SortedMap<String, GitFileEntry>
 
   @Nonnull
   public static TreeSnapshot capture(SortedMap<String, GitFileEntry> children) {
-    return new TreeSnapshot(children);
+    List<byte[]> names = new ArrayList<>(children.size());
+    List<GitFileEntry> entries = new ArrayList<>(children.size());
+    for(Map.Entry<String, GitFileEntry> child : children.entrySet()) {
+      names.add(Constants.encode(child.getKey()));
+      entries.add(child.getValue());
+    }
+    Integer[] order = new Integer[names.size()];
+    for(int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, (i1, i2) -> compareCanonical(names.get(i1), entries.get(i1).isSubtree(), names.get(i2), entries.get(i2).isSubtree()));
+    TreeFormatter formatter = new TreeFormatter();
+    for(int i : order) {
+      byte[] name = names.get(i);
+      GitFileEntry entry = entries.get(i);
+      formatter.append(name, 0, name.length, entry.getMode(), entry.getId());
+    }
+    byte[] raw = formatter.toByteArray();
+    return new TreeSnapshot(raw, new ObjectInserter.Formatter().idFor(OBJ_TREE, raw));
+  }
+
+  // unsigned UTF-8 byte order with a subtree name followed by '/', the order of git trees and of search()
+  private static int compareCanonical(byte[] name1, boolean tree1, byte[] name2, boolean tree2) {
+    int common = Math.min(name1.length, name2.length);
+    for(int i = 0; i < common; i++) {
+      int cmp = (name1[i] & 0xff) - (name2[i] & 0xff);
+      if(cmp != 0)
+        return cmp;
+    }
+    int last1 = name1.length > common ? name1[common] & 0xff : tree1 ? '/' : 0;
+    int last2 = name2.length > common ? name2[common] & 0xff : tree2 ? '/' : 0;
+    if(last1 != last2)
+      return last1 - last2;
+    return name1.length - name2.length;
+  }
+
+  // git orders a subtree as if its name ended with '/', so the key is looked up once as a file and once as a tree
+  private int search(byte[] key, boolean tree) {
+    int low = 0;
+    int high = nameEnds.length - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(mid, key, tree);
+      if(cmp < 0)
+        low = mid + 1;
+      else if(cmp > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  private int compare(int index, byte[] key, boolean tree) {
+    int start = nameStart(index);
+    int end = nameEnds[index];
+    int length = end - start;
+    int common = Math.min(length, key.length);
+    for(int i = 0; i < common; i++) {
+      int cmp = (raw[start + i] & 0xff) - (key[i] & 0xff);
+      if(cmp != 0)
+        return cmp;
+    }
+    int last = length > common ? raw[start + common] & 0xff : isTree(index) ? '/' : 0;
+    int keyLast = key.length > common ? key[common] & 0xff : tree ? '/' : 0;
+    if(last != keyLast)
+      return last - keyLast;
+    return length - key.length;
+  }
+
+  private boolean isTree(int index) {
+    return FileMode.TREE.equals(parseMode(index));
+  }
+
+  private int entryStart(int index) {
+    return index == 0 ? 0 : nameEnds[index - 1] + 1 + OBJECT_ID_LENGTH;
+  }
+
+  private int nameStart(int index) {
+    int ret = entryStart(index);
+    while(raw[ret] != ' ')
+      ret++;
+    return ret + 1;
+  }
+
+  private int parseMode(int index) {
+    int ret = 0;
+    for(int i = entryStart(index); raw[i] != ' '; i++)
+      ret = (ret << 3) + (raw[i] - '0');
+    return ret;
   }
 
   @Nonnull
-  private synchronized TreeFormatter format(SortedMap<String, GitFileEntry> data) {
-    if(formatter == null) {
-      formatter = new TreeFormatter();
-      for(Map.Entry<String, GitFileEntry> child : data.entrySet()) {
-        String name = child.getKey();
-        GitFileEntry entry = child.getValue();
-        formatter.append(name, entry.getMode(), entry.getId());
-      }
+  private static int[] parse(byte[] raw) {
+    int count = 0;
+    for(int i = 0; i < raw.length; i += OBJECT_ID_LENGTH + 1) {
+      while(raw[i] != 0)
+        i++;
+      count++;
+    }
+    int[] ret = new int[count];
+    int index = 0;
+    for(int i = 0; i < raw.length; i += OBJECT_ID_LENGTH + 1) {
+      while(raw[i] != 0)
+        i++;
+      ret[index++] = i;
     }
-    return formatter;
+    return ret;
   }
 
 }
@@ -0,0 +1,187 @@
+package ru.neoflex.meta.emfgit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.eclipse.emf.common.util.Enumerator;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Indexes the root objects of eClass (and its subclasses) by the values of the given attributes.
+ * An entry path is <key of attribute 1>/.../<key of attribute n>/<resource id parts>, so keys need
+ * not be unique and a leading subset of the attributes can be looked up by prefix.
+ * Keys are encoded so that their string order follows the value order:
+ *   "-" null, "b0"/"b1" booleans, "i" + 16 hex digits for integers and dates (epoch millis),
+ *   "d" + 16 hex digits for floating point, "n0"/"n1"/"n2" for negative/zero/positive big numbers
+ *   (exact: hex exponent and decimal digits, both inverted for negatives), "s" + hex of the utf-8 bytes otherwise.
+ */
+public class AttributeIndex implements Index {
+    public static final String NULL_KEY = "-";
+
+    private final Database database;
+    private final String name;
+    private final EClass eClass;
+    private final List<EAttribute> attributes;
+
+    public AttributeIndex(Database database, String name, EClass eClass, EAttribute... attributes) {
+        if (attributes.length == 0) {
+            throw new IllegalArgumentException("No attributes for index " + name);
+        }
+        for (EAttribute attribute: attributes) {
+            if (!eClass.getEAllAttributes().contains(attribute)) {
+                throw new IllegalArgumentException(String.format("Attribute %s not found in eClass %s", attribute.getName(), eClass.getName()));
+            }
+            if (attribute.isMany()) {
+                throw new IllegalArgumentException(String.format("Multi-valued attribute %s can't be indexed", attribute.getName()));
+            }
+        }
+        this.database = database;
+        this.name = name;
+        this.eClass = eClass;
+        this.attributes = Collections.unmodifiableList(Arrays.asList(attributes));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public List<IndexEntry> getEntries(Resource resource, Transaction transaction) throws IOException {
+        List<IndexEntry> result = new ArrayList<>();
+        Set<String> paths = new HashSet<>();
+        String id = database.getResourceId(resource);
+        for (EObject eObject: resource.getContents()) {
+            if (!eClass.isSuperTypeOf(eObject.eClass())) {
+                continue;
+            }
+            List<String> path = new ArrayList<>();
+            for (EAttribute attribute: attributes) {
+                path.add(encodeKey(eObject.eGet(attribute)));
+            }
+            path.addAll(Arrays.asList(id.split("/")));
+            if (paths.add(String.join("/", path))) {
+                IndexEntry entry = new IndexEntry();
+                entry.setPath(path.toArray(new String[0]));
+                entry.setContent(id.getBytes(StandardCharsets.UTF_8));
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    public EClass getEClass() {
+        return eClass;
+    }
+
+    public List<EAttribute> getAttributes() {
+        return attributes;
+    }
+
+    public static String encodeKey(Object value) {
+        if (value == null) {
+            return NULL_KEY;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "b1" : "b0";
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return "i" + hex(((Number) value).longValue() ^ Long.MIN_VALUE);
+        }
+        if (value instanceof Date) {
+            return "i" + hex(((Date) value).getTime() ^ Long.MIN_VALUE);
+        }
+        if (value instanceof BigInteger) {
+            return encodeDecimal(new BigDecimal((BigInteger) value));
+        }
+        if (value instanceof BigDecimal) {
+            return encodeDecimal((BigDecimal) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            return "d" + hex(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+        }
+        String text = value instanceof Enumerator ? ((Enumerator) value).getLiteral() : value.toString();
+        StringBuilder sb = new StringBuilder("s");
+        for (byte b: text.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String hex(long value) {
+        return String.format("%016x", value);
+    }
+
+    // value = 0.<digits> * 10^(exponent + 1): ordered by exponent, then by digits (no trailing zeros), so shorter first
+    private static String encodeDecimal(BigDecimal value) {
+        if (value.signum() == 0) {
+            return "n1";
+        }
+        BigDecimal normalized = value.stripTrailingZeros();
+        String digits = normalized.unscaledValue().abs().toString();
+        int exponent = normalized.precision() - normalized.scale() - 1;
+        if (value.signum() > 0) {
+            return "n2" + String.format("%08x", exponent ^ Integer.MIN_VALUE) + digits;
+        }
+        StringBuilder sb = new StringBuilder("n0").append(String.format("%08x", ~(exponent ^ Integer.MIN_VALUE)));
+        for (int i = 0; i < digits.length(); ++i) {
+            sb.append((char) ('9' - digits.charAt(i) + '0'));
+        }
+        // a longer negative mantissa is smaller, so the end sorts after every inverted digit
+        return sb.append('~').toString();
+    }
+
+    // converts a selector value to the attribute type, so that its key is comparable with the stored ones
+    public static Object toValue(EAttribute attribute, JsonNode node) {
+        if (node == null || node.isNull() || node.isContainerNode()) {
+            throw new IllegalArgumentException("Can't convert " + node + " to " + attribute.getName());
+        }
+        Class<?> type = attribute.getEAttributeType().getInstanceClass();
+        if (type == null) {
+            return node.asText();
+        }
+        if (type == long.class || type == int.class || type == short.class || type == byte.class ||
+                type == Long.class || type == Integer.class || type == Short.class || type == Byte.class) {
+            return node.isNumber() ? node.asLong() : Long.valueOf(node.asText());
+        }
+        if (type == BigDecimal.class) {
+            return node.isNumber() ? node.decimalValue() : new BigDecimal(node.asText());
+        }
+        if (type == BigInteger.class) {
+            return node.isNumber() ? node.bigIntegerValue() : new BigInteger(node.asText());
+        }
+        if (type == float.class || type == Float.class) {
+            // stored floats are widened to double when encoded, so the selector value must be rounded to float first
+            return node.isNumber() ? node.floatValue() : Float.valueOf(node.asText());
+        }
+        if (type == double.class || Number.class.isAssignableFrom(type)) {
+            return node.isNumber() ? node.asDouble() : Double.valueOf(node.asText());
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return node.isBoolean() ? node.asBoolean() : Boolean.valueOf(node.asText());
+        }
+        if (Date.class.isAssignableFrom(type) && node.isNumber()) {
+            return new Date(node.asLong());
+        }
+        Object value;
+        try {
+            value = EcoreUtil.createFromString(attribute.getEAttributeType(), node.asText());
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Can't convert " + node + " to " + attribute.getName(), e);
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Can't convert " + node + " to " + attribute.getName());
+        }
+        return value;
+    }
+}
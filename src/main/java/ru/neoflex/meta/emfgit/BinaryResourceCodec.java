@@ -0,0 +1,83 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.common.util.TreeIterator;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.impl.BinaryResourceImpl;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+
+import java.io.*;
+import java.util.*;
+
+public class BinaryResourceCodec implements ResourceCodec {
+    public static final String NAME = "binary";
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'e', 'm', 'f', 'g', 'i', 't', 1};
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] content) {
+        if (content.length < SIGNATURE.length) {
+            return false;
+        }
+        for (int i = 0; i < SIGNATURE.length; ++i) {
+            if (content[i] != SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void encode(Resource resource, OutputStream os, Map<?, ?> options) throws IOException {
+        // BinaryResourceImpl does not keep XMI ids, so they are written up front in getAllContents order
+        List<String> ids = new ArrayList<>();
+        if (resource instanceof XMLResource) {
+            for (TreeIterator<EObject> it = resource.getAllContents(); it.hasNext();) {
+                String id = ((XMLResource) resource).getID(it.next());
+                ids.add(id == null ? "" : id);
+            }
+        }
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(SIGNATURE);
+        dos.writeInt(ids.size());
+        for (String id: ids) {
+            dos.writeUTF(id);
+        }
+        dos.flush();
+        BinaryResourceImpl.EObjectOutputStream eos = new BinaryResourceImpl.EObjectOutputStream(os, getOptions(options));
+        eos.saveResource(resource);
+        eos.flush();
+    }
+
+    @Override
+    public void decode(byte[] content, Resource resource, Map<?, ?> options) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(content));
+        if (!canDecode(content) || dis.skipBytes(SIGNATURE.length) != SIGNATURE.length) {
+            throw new IOException("Not a binary resource: " + resource.getURI());
+        }
+        int count = dis.readInt();
+        String[] ids = new String[count];
+        for (int i = 0; i < count; ++i) {
+            ids[i] = dis.readUTF();
+        }
+        BinaryResourceImpl.EObjectInputStream eis = new BinaryResourceImpl.EObjectInputStream(dis, getOptions(options));
+        eis.loadResource(resource);
+        if (resource instanceof XMLResource && count > 0) {
+            int i = 0;
+            for (TreeIterator<EObject> it = resource.getAllContents(); it.hasNext() && i < count; ++i) {
+                EObject eObject = it.next();
+                if (ids[i].length() > 0) {
+                    ((XMLResource) resource).setID(eObject, ids[i]);
+                }
+            }
+        }
+    }
+
+    private static Map<?, ?> getOptions(Map<?, ?> options) {
+        return options == null ? Collections.emptyMap() : options;
+    }
+}
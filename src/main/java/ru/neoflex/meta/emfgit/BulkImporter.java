@@ -0,0 +1,231 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.w3c.dom.Element;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static ru.neoflex.meta.emfgit.Exporter.*;
+
+/*
+ * Imports the .xmi/.refs files written by Exporter in one pass over the transaction.
+ * Entries are parsed and serialized in parallel, qualified names are resolved against a name -> id map
+ * built once from the type_name index, blobs are written in one sequence without per-resource lookups and
+ * every index is updated once at the end. Save events (and the checks registered on them) are not fired:
+ * names are checked for duplicates within the archive only, references must resolve or the import fails.
+ * The caller commits the transaction.
+ */
+public class BulkImporter {
+    private final Exporter exporter;
+    private final Database database;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public BulkImporter(Exporter exporter) {
+        this.exporter = exporter;
+        this.database = exporter.database;
+    }
+
+    public int importZip(InputStream inputStream, Transaction tx) throws IOException {
+        Map<String, byte[]> xmis = new LinkedHashMap<>();
+        List<byte[]> refs = new ArrayList<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(inputStream);) {
+            ZipEntry zipEntry = zipInputStream.getNextEntry();
+            while (zipEntry != null) {
+                if (!zipEntry.isDirectory()) {
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int length;
+                    while ((length = zipInputStream.read(buffer)) > 0) {
+                        outputStream.write(buffer, 0, length);
+                    }
+                    String name = zipEntry.getName();
+                    if (name.endsWith(XMI)) {
+                        xmis.put(name.substring(0, name.length() - XMI.length()), outputStream.toByteArray());
+                    }
+                    else if (name.endsWith(REFS)) {
+                        refs.add(outputStream.toByteArray());
+                    }
+                }
+                zipEntry = zipInputStream.getNextEntry();
+            }
+        }
+        return importEntries(xmis, refs, tx);
+    }
+
+    public int importPath(Path path, Transaction tx) throws IOException {
+        Map<String, byte[]> xmis = new LinkedHashMap<>();
+        List<byte[]> refs = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(path)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file: files) {
+            String name = path.relativize(file).toString();
+            if (name.endsWith(XMI)) {
+                xmis.put(name.substring(0, name.length() - XMI.length()), Files.readAllBytes(file));
+            }
+            else if (name.endsWith(REFS)) {
+                refs.add(Files.readAllBytes(file));
+            }
+        }
+        return importEntries(xmis, refs, tx);
+    }
+
+    public int importEntries(Map<String, byte[]> xmis, List<byte[]> refs, Transaction tx) throws IOException {
+        List<String> archiveIds = new ArrayList<>(xmis.keySet());
+        List<Resource> imported = parallel(archiveIds, id -> {
+            Resource resource = database.createResource(tx, id);
+            resource.load(new ByteArrayInputStream(xmis.get(id)), null);
+            return resource;
+        });
+        Map<String, String> existingIds = new HashMap<>();
+        for (IndexEntry entry: database.findByIndex(tx, Database.TYPE_NAME_IDX)) {
+            existingIds.putIfAbsent(String.join("/", IndexSnapshot.normalize(entry.getPath())), new String(entry.getContent(), StandardCharsets.UTF_8));
+        }
+        Map<String, Resource> byName = new HashMap<>();
+        for (Resource resource: imported) {
+            String key = getKey(resource.getContents().get(0));
+            if (byName.put(key, resource) != null) {
+                throw new IOException("Duplicate qualified name in import: " + key);
+            }
+            String existingId = existingIds.get(key);
+            if (existingId != null) {
+                resource.setURI(database.createURI(existingId));
+            }
+        }
+
+        ResourceSet existingRS = database.createResourceSet(tx);
+        Map<String, Resource> existing = new HashMap<>();
+        Map<String, EClass> eClasses = new HashMap<>();
+        Set<Resource> toSave = new LinkedHashSet<>(imported);
+        Exporter.ElementResolver resolver = element -> {
+            EClass eClass = eClasses.computeIfAbsent(element.getAttribute(E_CLASS), exporter::string2EClass);
+            String key = getKey(eClass, element.getAttribute(Q_NAME));
+            Resource resource = byName.get(key);
+            if (resource == null) {
+                String id = existingIds.get(key);
+                if (id == null) {
+                    throw new IllegalArgumentException("EObject not found: " + key);
+                }
+                resource = existing.get(id);
+                if (resource == null) {
+                    resource = database.loadResource(existingRS, id);
+                    existing.put(id, resource);
+                }
+            }
+            String fragment = element.getAttribute(FRAGMENT);
+            EObject eObject = resource.getContents().get(0);
+            eObject = fragment.length() == 0 ? eObject : EcoreUtil.getEObject(eObject, fragment);
+            if (eObject == null) {
+                throw new IllegalArgumentException(String.format("EObject not found: %s[%s]", key, fragment));
+            }
+            return eObject;
+        };
+        List<Element> refElements = parallel(refs, exporter::parseElement);
+        try {
+            for (Element element: refElements) {
+                toSave.add(exporter.applyExternalReferences(element, resolver).eResource());
+            }
+        }
+        catch (IOException|RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        List<Resource> resources = new ArrayList<>(toSave);
+        List<Entity> oldEntities = parallel(resources, resource -> {
+            EntityId entityId = new EntityId(database.checkAndGetResourceId(resource));
+            return tx.isResourceExists(entityId) ? tx.load(entityId) : null;
+        });
+        List<Resource> oldResources = parallel(oldEntities, old -> old == null ? null : database.entityToResource(tx, old));
+        List<byte[]> contents = parallel(resources, resource -> database.saveResource(resource, ((ResourceImpl) resource).getDefaultSaveOptions()));
+        for (int i = 0; i < resources.size(); ++i) {
+            Resource resource = resources.get(i);
+            Entity old = oldEntities.get(i);
+            Entity entity = new Entity(database.getResourceId(resource), old == null ? 0 : old.getRev(), contents.get(i));
+            if (old == null) {
+                tx.create(entity);
+            }
+            else {
+                tx.update(entity);
+            }
+            resource.setURI(database.createURI(entity.getId(), entity.getRev()));
+        }
+        database.updateResourceIndexes(oldResources, resources, tx);
+        return imported.size();
+    }
+
+    private String getKey(EObject eObject) throws IOException {
+        EClass eClass = eObject.eClass();
+        EStructuralFeature nameFeature = database.getQNameFeature(eClass);
+        if (nameFeature == null) {
+            throw new IOException("Qualified name not found in " + exporter.eClass2String(eClass));
+        }
+        return getKey(eClass, (String) eObject.eGet(nameFeature));
+    }
+
+    private String getKey(EClass eClass, String name) {
+        return String.join("/", IndexSnapshot.normalize(eClass.getEPackage().getNsURI(), eClass.getName(), name));
+    }
+
+    private interface Task<T, R> {
+        R apply(T t) throws Exception;
+    }
+
+    // applies f to every item on the pool, keeping the order of items
+    private <T, R> List<R> parallel(List<T> items, Task<T, R> f) throws IOException {
+        List<ForkJoinTask<R>> tasks = new ArrayList<>(items.size());
+        for (T item: items) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    return f.apply(item);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new UncheckedIOException(new IOException(e));
+                }
+            }));
+        }
+        List<R> result = new ArrayList<>(items.size());
+        try {
+            for (ForkJoinTask<R> task: tasks) {
+                result.add(task.join());
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+}
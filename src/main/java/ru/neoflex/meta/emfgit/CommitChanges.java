@@ -0,0 +1,53 @@
+package ru.neoflex.meta.emfgit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommitChanges {
+    private String commitId;
+    private String cursor;
+    private int commitTime;
+    private List<EntityChange> changes = new ArrayList<>();
+
+    public CommitChanges(String commitId, String cursor, int commitTime) {
+        this.commitId = commitId;
+        this.cursor = cursor;
+        this.commitTime = commitTime;
+    }
+
+    public CommitChanges() {
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public void setCommitId(String commitId) {
+        this.commitId = commitId;
+    }
+
+    // pass to Database.getChanges to continue after this commit
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getCommitTime() {
+        return commitTime;
+    }
+
+    public void setCommitTime(int commitTime) {
+        this.commitTime = commitTime;
+    }
+
+    public List<EntityChange> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<EntityChange> changes) {
+        this.changes = changes;
+    }
+}
@@ -0,0 +1,21 @@
+package ru.neoflex.meta.emfgit;
+
+import java.io.IOException;
+
+public class CommitConflictException extends IOException {
+    private final String path;
+
+    public CommitConflictException(String path) {
+        super("Conflicting change of " + path);
+        this.path = path;
+    }
+
+    public CommitConflictException(String path, Throwable cause) {
+        super("Conflicting change of " + path, cause);
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,497 @@
+package ru.neoflex.meta.emfgit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class CompiledQuery {
+    public static final int MAX_CACHED = 256;
+    private static final Map<String, CompiledQuery> CACHE = new LinkedHashMap<String, CompiledQuery>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private static final Object NO_FEATURE = new Object();
+
+    private final String id;
+    private final String rev;
+    private final Node contents;
+
+    private CompiledQuery(ObjectNode selector) {
+        JsonNode _id = selector.get("id");
+        JsonNode _rev = selector.get("rev");
+        JsonNode _contents = selector.get("contents");
+        this.id = _id == null ? null : _id.asText();
+        this.rev = _rev == null ? null : _rev.asText();
+        if (_contents != null && _contents.has("$text")) {
+            // $text is resolved by the text index the query is planned on
+            _contents = ((ObjectNode) _contents).deepCopy();
+            ((ObjectNode) _contents).remove("$text");
+        }
+        this.contents = _contents == null ? null : compile(_contents);
+    }
+
+    public static CompiledQuery compile(ObjectNode selector) {
+        String key = selector.toString();
+        synchronized (CACHE) {
+            CompiledQuery compiled = CACHE.get(key);
+            if (compiled == null) {
+                compiled = new CompiledQuery(selector);
+                CACHE.put(key, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    public boolean matches(EntityId entityId, EObject object) {
+        if (id != null && !id.equals(entityId.getId())) {
+            return false;
+        }
+        if (rev != null && !rev.equals(String.valueOf(entityId.getRev()))) {
+            return false;
+        }
+        return contents == null || contents.test(object);
+    }
+
+    private static Node compile(JsonNode query) {
+        if (query.isObject()) {
+            List<Node> fields = new ArrayList<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = query.fields(); it.hasNext();) {
+                Map.Entry<String, JsonNode> field = it.next();
+                String fieldName = field.getKey();
+                if (fieldName.startsWith("$")) {
+                    fields.add(compileOp(fieldName, field.getValue()));
+                }
+                else if (fieldName.equals("eClass")) {
+                    fields.add(new InstanceOf(field.getValue().asText()));
+                }
+                else {
+                    fields.add(new Field(unescape(fieldName), compile(field.getValue())));
+                }
+            }
+            return new Fields(fields.toArray(new Node[0]));
+        }
+        return new Plain(query.isNull() ? null : query.asText());
+    }
+
+    private static Node compileOp(String op, JsonNode query) {
+        switch (op) {
+            case "$and":
+                return query.isArray() ? new And(compileAll(query)) : Node.FALSE;
+            case "$or":
+                return query.isArray() ? new Or(compileAll(query)) : Node.FALSE;
+            case "$nor":
+                return query.isArray() ? new Not(new Or(compileAll(query))) : Node.FALSE;
+            case "$not":
+                return new Not(compile(query));
+            case "$all":
+                return query.isArray() ? new All(texts(query)) : Node.FALSE;
+            case "$elemMatch":
+                return new ElemMatch(compile(query), false);
+            case "$allMatch":
+                return new ElemMatch(compile(query), true);
+            case "$lt":
+            case "$gt":
+            case "$lte":
+            case "$gte":
+                return new Compare(op, query);
+            case "$eq":
+                return new Eq(query.asText());
+            case "$ne":
+                return new Not(new Eq(query.asText()));
+            case "$exists":
+                return new Exists(query.asBoolean());
+            case "$size":
+                return new Size(query.asInt());
+            case "$type":
+                return new Type(query.asText());
+            case "$in":
+                return query.isArray() ? new In(new HashSet<>(texts(query))) : Node.FALSE;
+            case "$nin":
+                return query.isArray() ? new Not(new In(new HashSet<>(texts(query)))) : Node.TRUE;
+            case "$regex":
+                return new Regex(Pattern.compile(query.asText()));
+            case "$text":
+                throw new IllegalArgumentException("$text is only supported at the top level of contents");
+            default:
+                return Node.FALSE;
+        }
+    }
+
+    private static Node[] compileAll(JsonNode query) {
+        List<Node> nodes = new ArrayList<>();
+        for (JsonNode node: query) {
+            nodes.add(compile(node));
+        }
+        return nodes.toArray(new Node[0]);
+    }
+
+    private static List<String> texts(JsonNode query) {
+        List<String> texts = new ArrayList<>();
+        for (JsonNode node: query) {
+            texts.add(node.asText());
+        }
+        return texts;
+    }
+
+    private static String unescape(String fieldName) {
+        return fieldName.replaceAll("^[\\\\]\\$", "\\$");
+    }
+
+    static abstract class Node {
+        static final Node TRUE = new Node() {
+            @Override
+            boolean test(Object object) {
+                return true;
+            }
+        };
+        static final Node FALSE = new Node() {
+            @Override
+            boolean test(Object object) {
+                return false;
+            }
+        };
+
+        abstract boolean test(Object object);
+    }
+
+    static class Fields extends Node {
+        private final Node[] fields;
+
+        Fields(Node[] fields) {
+            this.fields = fields;
+        }
+
+        @Override
+        boolean test(Object object) {
+            for (Node field: fields) {
+                if (object == null && !(field instanceof NullTolerant)) {
+                    return false;
+                }
+                if (!field.test(object)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // operators that also decide for a missing value
+    interface NullTolerant {
+    }
+
+    static class Plain extends Node {
+        private final String value;
+
+        Plain(String value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(Object object) {
+            if (object == null) {
+                return value == null;
+            }
+            if (object instanceof EObject || object instanceof List) {
+                return false;
+            }
+            return object.toString().equals(value);
+        }
+    }
+
+    static class Field extends Node {
+        private final String name;
+        private final Node child;
+        private final Map<EClass, Object> features = new ConcurrentHashMap<>();
+
+        Field(String name, Node child) {
+            this.name = name;
+            this.child = child;
+        }
+
+        @Override
+        boolean test(Object object) {
+            Object value = null;
+            if (object instanceof EObject) {
+                EObject eObject = (EObject) object;
+                EClass eClass = eObject.eClass();
+                Object sf = features.get(eClass);
+                if (sf == null) {
+                    sf = eClass.getEStructuralFeature(name);
+                    features.put(eClass, sf == null ? NO_FEATURE : sf);
+                }
+                if (sf instanceof EStructuralFeature) {
+                    value = eObject.eGet((EStructuralFeature) sf);
+                }
+            }
+            return child.test(value);
+        }
+    }
+
+    static class InstanceOf extends Node {
+        private final String classURI;
+        private final Map<EClass, Boolean> matches = new ConcurrentHashMap<>();
+
+        InstanceOf(String classURI) {
+            this.classURI = classURI;
+        }
+
+        @Override
+        boolean test(Object object) {
+            if (!(object instanceof EObject)) {
+                return false;
+            }
+            EClass eClass = ((EObject) object).eClass();
+            Boolean result = matches.get(eClass);
+            if (result == null) {
+                result = EcoreUtil.getURI(eClass).toString().equals(classURI);
+                for (EClass superType: eClass.getEAllSuperTypes()) {
+                    result = result || EcoreUtil.getURI(superType).toString().equals(classURI);
+                }
+                matches.put(eClass, result);
+            }
+            return result;
+        }
+    }
+
+    static class And extends Node implements NullTolerant {
+        private final Node[] children;
+
+        And(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean test(Object object) {
+            for (Node child: children) {
+                if (!child.test(object)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Or extends Node implements NullTolerant {
+        private final Node[] children;
+
+        Or(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean test(Object object) {
+            for (Node child: children) {
+                if (child.test(object)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Not extends Node implements NullTolerant {
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return !child.test(object);
+        }
+    }
+
+    static class All extends Node {
+        private final List<String> values;
+
+        All(List<String> values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean test(Object object) {
+            if (!(object instanceof List)) {
+                return false;
+            }
+            for (String value: values) {
+                boolean found = false;
+                for (Object element: (List) object) {
+                    if (element != null && element.toString().equals(value)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class ElemMatch extends Node {
+        private final Node child;
+        private final boolean all;
+
+        ElemMatch(Node child, boolean all) {
+            this.child = child;
+            this.all = all;
+        }
+
+        @Override
+        boolean test(Object object) {
+            if (!(object instanceof List)) {
+                return false;
+            }
+            for (Object element: (List) object) {
+                if (child.test(element) != all) {
+                    return !all;
+                }
+            }
+            return all;
+        }
+    }
+
+    static class Compare extends Node {
+        private final String op;
+        private final String text;
+        private final BigDecimal decimal;
+        private final boolean integral;
+        private final long longValue;
+        private final double doubleValue;
+        private final Boolean bool;
+
+        Compare(String op, JsonNode query) {
+            this.op = op;
+            this.text = query.isTextual() ? query.asText() : null;
+            this.decimal = query.isNumber() ? query.decimalValue() : null;
+            this.integral = query.isIntegralNumber() && query.canConvertToLong();
+            this.longValue = query.asLong();
+            this.doubleValue = query.asDouble();
+            this.bool = query.isBoolean() ? query.asBoolean() : null;
+        }
+
+        @Override
+        boolean test(Object object) {
+            int cmp = compare(object);
+            switch (op) {
+                case "$lt": return cmp < 0;
+                case "$lte": return cmp <= 0;
+                case "$gt": return cmp > 0;
+                default: return cmp >= 0;
+            }
+        }
+
+        private int compare(Object object) {
+            if (object instanceof Number && decimal != null) {
+                if (integral && (object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte)) {
+                    return Long.compare(((Number) object).longValue(), longValue);
+                }
+                if (object instanceof Double) {
+                    return Double.compare(((Number) object).doubleValue(), doubleValue);
+                }
+                return new BigDecimal(object.toString()).compareTo(decimal);
+            }
+            if (object instanceof Date && decimal != null) {
+                return Long.compare(((Date) object).getTime(), longValue);
+            }
+            if (object instanceof String && text != null) {
+                return ((String) object).compareTo(text);
+            }
+            if (object instanceof Boolean && bool != null) {
+                return ((Boolean) object).compareTo(bool);
+            }
+            throw new IllegalArgumentException("Can't compare values: " + object + ", " + (text != null ? text : decimal != null ? decimal : bool));
+        }
+    }
+
+    static class Eq extends Node implements NullTolerant {
+        private final String value;
+
+        Eq(String value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return object != null && object.toString().equals(value);
+        }
+    }
+
+    static class Exists extends Node implements NullTolerant {
+        private final boolean exists;
+
+        Exists(boolean exists) {
+            this.exists = exists;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return exists == (object != null);
+        }
+    }
+
+    static class Size extends Node {
+        private final int size;
+
+        Size(int size) {
+            this.size = size;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return object instanceof List && ((List) object).size() == size;
+        }
+    }
+
+    static class Type extends Node {
+        private final String type;
+
+        Type(String type) {
+            this.type = type;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return type.equals(object.getClass().getSimpleName());
+        }
+    }
+
+    static class In extends Node implements NullTolerant {
+        private final Set<String> values;
+
+        In(Set<String> values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean test(Object object) {
+            return object != null && values.contains(object.toString());
+        }
+    }
+
+    static class Regex extends Node {
+        private final ThreadLocal<Matcher> matcher;
+
+        Regex(Pattern pattern) {
+            this.matcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+        }
+
+        @Override
+        boolean test(Object object) {
+            return matcher.get().reset(object.toString()).matches();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ru.neoflex.meta.emfgit;
 
+import com.beijunyi.parallelgit.filesystem.GfsObjectCache;
 import com.beijunyi.parallelgit.filesystem.GitFileSystem;
 import com.beijunyi.parallelgit.filesystem.GitPath;
 import com.beijunyi.parallelgit.utils.BranchUtils;
@@ -19,42 +20,66 @@ import org.eclipse.emf.ecore.xmi.impl.XMIResourceImpl;
 import org.eclipse.emf.ecore.xmi.impl.XMLParserPoolImpl;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.eclipse.emf.ecore.xmi.XMLResource.*;
 import static org.eclipse.jgit.lib.Constants.DOT_GIT;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 public class Database implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(Database.class);
     final public static String DB_PATH = "db";
     final public static String IDS_PATH = DB_PATH + "/ids";
     final public static String IDX_PATH = DB_PATH + "/idx";
+    final public static String INDEX_WATERMARK_PATH = IDX_PATH + "/.watermark";
     public static final String TYPE_NAME_IDX = "type_name";
     public static final String REF_IDX = "ref";
     public static final String QNAME = "name";
     public static final String GITDB = "gitdb";
+    private static final String CURSOR_SEPARATOR = ":";
     private final Repository repository;
 
     private final EPackage.Registry packageRegistry = new EPackageRegistryImpl(EPackage.Registry.INSTANCE);
     private Map<String, Index> indexes = new HashMap<>();
+    private IndexStore indexStore = new FileIndexStore();
     private Events events = new Events();
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LockManager lockManager = new LockManager();
     private Function<EClass, EAttribute> qualifiedNameDelegate;
     private Map<EClass, List<EClass>> descendants = new HashMap<>();
     private String repoName;
     private XMLParserPool xmlParserPool = new XMLParserPoolImpl();
+    private volatile ResourceCache resourceCache;
+    private volatile GroupCommitter groupCommitter;
+    private volatile boolean mergeOnConflict = false;
+    private int maxMergeAttempts = 10;
+    private List<ResourceCodec> codecs = new CopyOnWriteArrayList<>(Arrays.asList(new XmiResourceCodec(), new BinaryResourceCodec()));
+    private ResourceCodec defaultCodec = codecs.get(0);
 
     {
         try {
@@ -202,10 +227,67 @@ public class Database implements Closeable {
     }
 
     public Resource loadResource(byte[] content, Resource resource) throws IOException {
-        ((XMIResourceImpl) resource).doLoad(new ByteArrayInputStream(content), null);
+        return loadResource(content, resource, null);
+    }
+
+    public Resource loadResource(byte[] content, Resource resource, Map<?, ?> options) throws IOException {
+        ResourceCache cache = resourceCache;
+        // cached copies are decoded with default options, so explicit options bypass the cache
+        if (cache == null || options != null && !options.isEmpty()) {
+            getCodec(content).decode(content, resource, options);
+            return resource;
+        }
+        ObjectId blobId = ResourceCache.getBlobId(content);
+        if (!cache.load(blobId, resource)) {
+            getCodec(content).decode(content, resource, options);
+            cache.put(blobId, resource, content.length);
+        }
         return resource;
     }
 
+    public byte[] saveResource(Resource resource, Map<?, ?> options) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        getDefaultCodec().encode(resource, os, options);
+        return os.toByteArray();
+    }
+
+    public ResourceCodec getCodec(byte[] content) throws IOException {
+        for (ResourceCodec codec: codecs) {
+            if (codec.canDecode(content)) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown resource format");
+    }
+
+    public ResourceCodec getCodec(String name) {
+        for (ResourceCodec codec: codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Codec not found: " + name);
+    }
+
+    public List<ResourceCodec> getCodecs() {
+        return codecs;
+    }
+
+    public void registerCodec(ResourceCodec codec) {
+        codecs.add(0, codec);
+    }
+
+    public ResourceCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    public void setDefaultCodec(ResourceCodec defaultCodec) {
+        if (!codecs.contains(defaultCodec)) {
+            registerCodec(defaultCodec);
+        }
+        this.defaultCodec = defaultCodec;
+    }
+
     public Resource createResource(Transaction tx, String id) {
         return createResource(tx, id, null);
     }
@@ -333,52 +415,93 @@ public class Database implements Closeable {
     }
 
     public List<Resource> getDependentResources(List<Resource> resources, Transaction tx) throws IOException {
+        return getDependentResources(resources, tx, false);
+    }
+
+    public List<Resource> getDependentResources(List<Resource> resources, Transaction tx, boolean recursive) throws IOException {
         List<Resource> result = new ArrayList<>();
+        Set<String> ids = new LinkedHashSet<>();
         for (Resource resource: resources) {
-            if (!result.stream().anyMatch(r->r.getURI().equals(resource.getURI()))) {
+            if (ids.add(checkAndGetResourceId(resource))) {
                 result.add(resource);
             }
-            for (Resource dep: getDependentResources(resource, tx)) {
-                if (!result.stream().anyMatch(r->r.getURI().equals(dep.getURI()))) {
-                    result.add(dep);
-                }
-            }
         }
+        Set<String> dependentIds = getDependentIds(ids, tx, recursive);
+        dependentIds.removeAll(ids);
+        result.addAll(loadResources(dependentIds, tx));
         return result;
     }
 
-    public List<Resource> getDependentResources(List<Resource> resources, Transaction tx, boolean recursive) throws IOException {
-        if (recursive) {
-            return getDependentResourcesRecursive(resources, tx);
-        }
-        else {
-            return getDependentResources(resources, tx);
+    public List<Resource> getDependentResourcesRecursive(List<Resource> resources, Transaction tx) throws IOException {
+        return getDependentResources(resources, tx, true);
+    }
+
+    public List<Resource> getDependentResources(String id, Transaction tx) throws IOException {
+        return loadResources(getDependentIds(id, tx), tx);
+    }
+
+    public Set<String> getDependentIds(String id, Transaction tx) throws IOException {
+        Set<String> result = new LinkedHashSet<>();
+        String[] ids = id.split("/");
+        List<IndexEntry> refList = findByIndex(tx, REF_IDX, ids);
+        for (IndexEntry entry : refList) {
+            String[] refPath = new String[entry.getPath().length - ids.length];
+            System.arraycopy(entry.getPath(), ids.length, refPath, 0, refPath.length);
+            result.add(String.join("/", refPath));
         }
+        return result;
     }
 
-    public List<Resource> getDependentResourcesRecursive(List<Resource> resources, Transaction tx) throws IOException {
-        List<Resource> result = new ArrayList<>();
-        Queue<Resource> queue = new ArrayDeque<>(resources);
+    // the given ids with the ids of resources referring to them (transitively if recursive); nothing is loaded
+    public Set<String> getDependentIds(Collection<String> ids, Transaction tx, boolean recursive) throws IOException {
+        Set<String> result = new LinkedHashSet<>(ids);
+        Queue<String> queue = new ArrayDeque<>(result);
         while (!queue.isEmpty()) {
-            Resource resource = queue.remove();
-            if (!result.stream().anyMatch(r->r.getURI().equals(resource.getURI()))) {
-                result.add(resource);
-                queue.addAll(getDependentResources(resource, tx));
+            for (String dependentId: getDependentIds(queue.remove(), tx)) {
+                if (result.add(dependentId) && recursive) {
+                    queue.add(dependentId);
+                }
             }
         }
         return result;
     }
 
-    public List<Resource> getDependentResources(String id, Transaction tx) throws IOException {
+    public List<Resource> loadResources(Collection<String> ids, Transaction tx) throws IOException {
         ResourceSet resourceSet = createResourceSet(tx);
-        List<Resource> resources = new ArrayList<>();
-        String[] ids = id.split("/");
-        List<IndexEntry> refList = findByIndex(tx, REF_IDX, ids);
-        for (IndexEntry entry : refList) {
-            String[] refPath = new String[entry.getPath().length - ids.length];
-            System.arraycopy(entry.getPath(), ids.length, refPath, 0, refPath.length);
-            String refId = String.join("/", refPath);
-            resources.add(loadResource(resourceSet, refId));
+        List<Resource> resources = new ArrayList<>(ids.size());
+        for (String id: ids) {
+            resources.add(loadResource(resourceSet, id));
+        }
+        return resources;
+    }
+
+    // loads every resource into its own resource set on the pool, in batches of batchSize, keeping the order of ids
+    public List<Resource> loadResources(Collection<String> ids, Transaction tx, ForkJoinPool pool, int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        List<Resource> resources = new ArrayList<>(ids.size());
+        List<String> idList = new ArrayList<>(ids);
+        for (int from = 0; from < idList.size(); from += batchSize) {
+            List<ForkJoinTask<Resource>> tasks = new ArrayList<>(batchSize);
+            for (String id: idList.subList(from, Math.min(from + batchSize, idList.size()))) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        return loadResource(id, tx);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            try {
+                for (ForkJoinTask<Resource> task: tasks) {
+                    resources.add(task.join());
+                }
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
         return resources;
     }
@@ -427,53 +550,207 @@ public class Database implements Closeable {
     }
 
     private void deleteResourceIndexes(Resource old, Transaction tx) throws IOException {
-        GitFileSystem gfs = tx.getFileSystem();
         for (String indexName : getIndexes().keySet()) {
-            GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
-            for (IndexEntry entry : getIndexes().get(indexName).getEntries(old, tx)) {
-                GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", entry.getPath()).normalize());
-                Files.delete(indexValuePath);
-            }
+            List<IndexEntry> toDelete = getIndexes().get(indexName).getEntries(old, tx);
+            indexStore.update(tx, indexName, toDelete, Collections.emptyList());
         }
     }
 
     private void updateResourceIndexes(Resource oldResource, Resource newResource, Transaction tx) throws IOException {
-        GitFileSystem gfs = tx.getFileSystem();
-        Set<String> toDelete = new HashSet<>();
-        if (oldResource != null) {
-            for (String indexName : getIndexes().keySet()) {
-                GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
-                for (IndexEntry entry : getIndexes().get(indexName).getEntries(oldResource, tx)) {
-                    GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", entry.getPath()).normalize());
-                    toDelete.add(indexValuePath.toString());
-                }
-            }
+        for (String indexName : getIndexes().keySet()) {
+            Index index = getIndexes().get(indexName);
+            List<IndexEntry> toDelete = oldResource != null ? index.getEntries(oldResource, tx) : Collections.emptyList();
+            indexStore.update(tx, indexName, toDelete, index.getEntries(newResource, tx));
         }
+    }
+
+    // one index store update per index for a batch of saved resources; oldResources may contain nulls for new ones
+    void updateResourceIndexes(List<Resource> oldResources, List<Resource> newResources, Transaction tx) throws IOException {
         for (String indexName : getIndexes().keySet()) {
-            GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
-            for (IndexEntry entry : getIndexes().get(indexName).getEntries(newResource, tx)) {
-                GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", entry.getPath()).normalize());
-                if (!toDelete.remove(indexValuePath.toString()) && Files.exists(indexValuePath)) {
-                    throw new IOException("Index file " + indexValuePath.toString() + " already exists");
+            Index index = getIndexes().get(indexName);
+            List<IndexEntry> toDelete = new ArrayList<>();
+            List<IndexEntry> toPut = new ArrayList<>();
+            for (int i = 0; i < newResources.size(); ++i) {
+                if (oldResources.get(i) != null) {
+                    toDelete.addAll(index.getEntries(oldResources.get(i), tx));
                 }
-                Files.createDirectories(indexValuePath.getParent());
-                Files.write(indexValuePath, entry.getContent());
+                toPut.addAll(index.getEntries(newResources.get(i), tx));
             }
-        }
-        for (String indexValuePathString : toDelete) {
-            GitPath indexValuePath = gfs.getPath(indexValuePathString);
-            Files.delete(indexValuePath);
+            indexStore.update(tx, indexName, toDelete, toPut);
         }
     }
 
     public void reindex(Transaction tx) throws IOException {
+        reindex(tx, ForkJoinPool.commonPool());
+    }
+
+    // full rebuild: entities are loaded and their entries computed on the pool, every index is written once
+    public int reindex(Transaction tx, ForkJoinPool pool) throws IOException {
         GitFileSystem gfs = tx.getFileSystem();
         GitPath indexRootPath = gfs.getPath("/", IDX_PATH);
-        deleteRecursive(indexRootPath);
-        for (EntityId entityId : tx.all()) {
-            Entity entity = tx.load(entityId);
-            Resource resource = entityToResource(tx, entity);
-            updateResourceIndexes(null, resource, tx);
+        if (Files.exists(indexRootPath)) {
+            deleteRecursive(indexRootPath);
+        }
+        ObjectId idsTree = getIdsTree(gfs.flush());
+        List<EntityId> all;
+        Map<String, List<IndexEntry>> toPut = new HashMap<>();
+        // the pool reads an immutable snapshot of tx, the file system of tx is not shared between threads
+        try (SnapshotTransaction snapshot = SnapshotTransaction.of(tx)) {
+            all = snapshot.all();
+            List<ForkJoinTask<Map<String, List<IndexEntry>>>> tasks = new ArrayList<>(all.size());
+            for (EntityId entityId: all) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        Resource resource = entityToResource(snapshot, snapshot.load(entityId));
+                        Map<String, List<IndexEntry>> entries = new HashMap<>();
+                        for (Index index: getIndexes().values()) {
+                            entries.put(index.getName(), index.getEntries(resource, snapshot));
+                        }
+                        return entries;
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            try {
+                for (ForkJoinTask<Map<String, List<IndexEntry>>> task: tasks) {
+                    for (Map.Entry<String, List<IndexEntry>> entry: task.join().entrySet()) {
+                        toPut.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+                    }
+                }
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        for (String indexName: getIndexes().keySet()) {
+            indexStore.update(tx, indexName, Collections.emptyList(), toPut.getOrDefault(indexName, Collections.emptyList()));
+        }
+        setIndexWatermark(tx, idsTree);
+        return all.size();
+    }
+
+    /*
+     * Recomputes the index entries of the entities changed between the db/ids tree of the watermark and the
+     * current one of the transaction, e.g. after a git merge or an external edit of db/ids. The entries of the
+     * watermark version are removed and those of the current version put, whatever of them the indexes already
+     * contain; every index is reconciled once for all of the changed entities.
+     * Without a (resolvable) watermark the indexes are rebuilt. Returns the number of reindexed entities.
+     */
+    public int reindexIncremental(Transaction tx) throws IOException {
+        ObjectId watermark = getIndexWatermark(tx);
+        ObjectId idsTree = getIdsTree(tx.getFileSystem().flush());
+        Map<String, List<IndexEntry>> oldEntries = new HashMap<>();
+        Map<String, List<IndexEntry>> newEntries = new HashMap<>();
+        int count = 0;
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            if (watermark == null || !addIdsTree(treeWalk, watermark)) {
+                logger.debug("Index watermark " + (watermark == null ? null : watermark.getName()) + " not found");
+                return reindex(tx, ForkJoinPool.commonPool());
+            }
+            addIdsTree(treeWalk, idsTree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            while (treeWalk.next()) {
+                String id = treeWalk.getPathString();
+                Resource old = null;
+                if (treeWalk.getRawMode(0) != 0) {
+                    old = loadResource(reader.open(treeWalk.getObjectId(0), OBJ_BLOB).getCachedBytes(), createResource(tx, id));
+                }
+                Resource resource = treeWalk.getRawMode(1) != 0 ? loadResource(id, tx) : null;
+                for (Index index: getIndexes().values()) {
+                    if (old != null) {
+                        oldEntries.computeIfAbsent(index.getName(), k -> new ArrayList<>()).addAll(index.getEntries(old, tx));
+                    }
+                    if (resource != null) {
+                        newEntries.computeIfAbsent(index.getName(), k -> new ArrayList<>()).addAll(index.getEntries(resource, tx));
+                    }
+                }
+                ++count;
+            }
+        }
+        for (String indexName: getIndexes().keySet()) {
+            reconcileIndexEntries(tx, indexName,
+                    oldEntries.getOrDefault(indexName, Collections.emptyList()),
+                    newEntries.getOrDefault(indexName, Collections.emptyList()));
+        }
+        setIndexWatermark(tx, idsTree);
+        return count;
+    }
+
+    // false if the tree is not in the repository
+    private static boolean addIdsTree(TreeWalk treeWalk, ObjectId idsTree) throws IOException {
+        if (idsTree.equals(ObjectId.zeroId())) {
+            treeWalk.addTree(new EmptyTreeIterator());
+            return true;
+        }
+        try {
+            treeWalk.addTree(idsTree);
+            return true;
+        }
+        catch (MissingObjectException|IncorrectObjectTypeException e) {
+            return false;
+        }
+    }
+
+    // every stored path is looked up once for all of the changed entities, the index is updated once
+    private void reconcileIndexEntries(Transaction tx, String indexName, List<IndexEntry> oldEntries, List<IndexEntry> newEntries) throws IOException {
+        Map<List<String>, String[]> paths = new HashMap<>();
+        for (IndexEntry entry: oldEntries) {
+            paths.putIfAbsent(IndexSnapshot.normalize(entry.getPath()), entry.getPath());
+        }
+        Set<List<String>> newPaths = new HashSet<>();
+        for (IndexEntry entry: newEntries) {
+            List<String> path = IndexSnapshot.normalize(entry.getPath());
+            newPaths.add(path);
+            paths.putIfAbsent(path, entry.getPath());
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        Map<List<String>, IndexEntry> existing = indexStore.get(tx, indexName, paths.values());
+        List<IndexEntry> toDelete = new ArrayList<>();
+        List<IndexEntry> toPut = new ArrayList<>();
+        for (Map.Entry<List<String>, IndexEntry> entry: existing.entrySet()) {
+            if (!newPaths.contains(entry.getKey())) {
+                toDelete.add(entry.getValue());
+            }
+        }
+        for (IndexEntry entry: newEntries) {
+            IndexEntry found = existing.get(IndexSnapshot.normalize(entry.getPath()));
+            if (found == null) {
+                toPut.add(entry);
+            }
+            else if (!Arrays.equals(found.getContent(), entry.getContent())) {
+                toDelete.add(found);
+                toPut.add(entry);
+            }
+        }
+        if (!toDelete.isEmpty() || !toPut.isEmpty()) {
+            indexStore.update(tx, indexName, toDelete, toPut);
+        }
+    }
+
+    // the db/ids tree the indexes of the transaction were last reconciled with, the zero id for no entities
+    public ObjectId getIndexWatermark(Transaction tx) throws IOException {
+        GitPath path = tx.getFileSystem().getPath("/", INDEX_WATERMARK_PATH);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        String name = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        return ObjectId.isId(name) ? ObjectId.fromString(name) : null;
+    }
+
+    private void setIndexWatermark(Transaction tx, ObjectId idsTree) throws IOException {
+        GitPath path = tx.getFileSystem().getPath("/", INDEX_WATERMARK_PATH);
+        Files.createDirectories(path.getParent());
+        Files.write(path, idsTree.getName().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ObjectId getIdsTree(ObjectId rootTree) throws IOException {
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = TreeWalk.forPath(reader, IDS_PATH, rootTree)) {
+            return treeWalk != null ? treeWalk.getObjectId(0) : ObjectId.zeroId();
         }
     }
 
@@ -547,25 +824,138 @@ public class Database implements Closeable {
     }
 
     public List<IndexEntry> findByIndex(Transaction tx, String indexName, String... path) throws IOException {
-        GitFileSystem gfs = tx.getFileSystem();
-        GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
-        GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", path).normalize());
-        try {
-            return Files.walk(indexValuePath).filter(Files::isRegularFile).map(file -> {
-                IndexEntry entry = new IndexEntry();
-                Path relPath = indexPath.relativize(file);
-                entry.setPath(relPath.toString().split("/"));
-                try {
-                    byte[] content = Files.readAllBytes(file);
-                    entry.setContent(content);
-                    return entry;
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        return indexStore.find(tx, indexName, path);
+    }
+
+    public int countByIndex(Transaction tx, String indexName, String... path) throws IOException {
+        return indexStore.count(tx, indexName, path);
+    }
+
+    // cursor of the current head of the branch, to follow its changes from now on
+    public String getHeadCursor(String branch) throws IOException {
+        return BranchUtils.getHeadCommit(branch, repository).getName();
+    }
+
+    /*
+     * Change feed of a branch: the commits after cursor (the whole history for null) along the first-parent chain,
+     * oldest first and at most maxCommits of them, each with the entities it created, updated or deleted.
+     * Only db/ids trees are diffed, unchanged subtrees are skipped by id and no entity content is read.
+     * The cursor of a returned commit continues the feed after it.
+     * Git can only walk a chain backwards, so the first page walks the whole range from the head down to cursor.
+     * Cursors carry pivots of that walk: commits maxCommits, 2 * maxCommits, 4 * maxCommits... ahead and the
+     * head walked from, so a following page only walks back from the nearest pivot. Pages of the same size then
+     * walk O(maxCommits * log(range / maxCommits)) commits each, and commits made meanwhile are walked once.
+     */
+    public List<CommitChanges> getChanges(String branch, String cursor, int maxCommits) throws IOException {
+        if (maxCommits < 1) {
+            throw new IllegalArgumentException("Invalid number of commits: " + maxCommits);
+        }
+        ObjectId from = null;
+        Deque<ObjectId> pivots = new ArrayDeque<>();
+        if (cursor != null) {
+            String[] ids = cursor.split(CURSOR_SEPARATOR);
+            for (String id: ids) {
+                if (!ObjectId.isId(id)) {
+                    throw new IllegalArgumentException("Invalid cursor: " + cursor);
+                }
+            }
+            from = ObjectId.fromString(ids[0]);
+            for (int i = 1; i < ids.length; ++i) {
+                pivots.add(ObjectId.fromString(ids[i]));
+            }
+        }
+        List<CommitChanges> result = new ArrayList<>();
+        try (RevWalk revWalk = new RevWalk(repository); ObjectReader reader = repository.newObjectReader()) {
+            RevCommit head = revWalk.parseCommit(BranchUtils.getHeadCommit(branch, repository));
+            revWalk.setRetainBody(false);
+            RevCommit fromCommit = from == null ? null : revWalk.parseCommit(from);
+            RevCommit last = pivots.isEmpty() ? fromCommit : revWalk.parseCommit(pivots.getLast());
+            if (last != null) {
+                if (!revWalk.isMergedInto(last, head)) {
+                    throw new IOException("Cursor " + cursor + " is not in the history of branch " + branch);
+                }
+                revWalk.reset();
+            }
+            revWalk.setFirstParent(true);
+            while (result.size() < maxCommits) {
+                RevCommit end = pivots.isEmpty() ? head : revWalk.parseCommit(pivots.removeFirst());
+                if (end.equals(fromCommit)) {
+                    break;
+                }
+                // the segment from the cursor up to the end, oldest first
+                List<RevCommit> segment = new ArrayList<>();
+                revWalk.reset();
+                revWalk.markStart(end);
+                if (fromCommit != null) {
+                    revWalk.markUninteresting(fromCommit);
                 }
-            }).collect(Collectors.toList());
-        } catch (NoSuchFileException e) {
-            return new ArrayList<>();
+                for (RevCommit commit; (commit = revWalk.next()) != null; ) {
+                    segment.add(commit);
+                }
+                Collections.reverse(segment);
+                if (segment.isEmpty() || fromCommit != null && (segment.get(0).getParentCount() == 0 ||
+                        !segment.get(0).getParent(0).equals(fromCommit))) {
+                    throw new IOException("Cursor " + cursor + " is not in the first-parent history of branch " + branch);
+                }
+                int count = Math.min(maxCommits - result.size(), segment.size());
+                for (int i = 0; i < count; ++i) {
+                    result.add(getCommitChanges(revWalk, reader, segment.get(i)));
+                }
+                fromCommit = segment.get(count - 1);
+                if (count < segment.size()) {
+                    // the rest of the segment is split, so that the next pages don't walk it whole again
+                    pivots.addFirst(end);
+                    List<RevCommit> split = new ArrayList<>();
+                    for (long distance = maxCommits; count - 1 + distance < segment.size() - 1; distance *= 2) {
+                        split.add(segment.get((int) (count - 1 + distance)));
+                    }
+                    for (int i = split.size() - 1; i >= 0; --i) {
+                        pivots.addFirst(split.get(i));
+                    }
+                }
+                else if (end.equals(head)) {
+                    break;
+                }
+            }
+        }
+        StringBuilder suffix = new StringBuilder();
+        for (ObjectId pivot: pivots) {
+            suffix.append(CURSOR_SEPARATOR).append(pivot.getName());
+        }
+        for (CommitChanges commitChanges: result) {
+            commitChanges.setCursor(commitChanges.getCommitId() + suffix);
+        }
+        return result;
+    }
+
+    private CommitChanges getCommitChanges(RevWalk revWalk, ObjectReader reader, RevCommit commit) throws IOException {
+        CommitChanges commitChanges = new CommitChanges(commit.getName(), commit.getName(), commit.getCommitTime());
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            if (commit.getParentCount() > 0) {
+                treeWalk.addTree(revWalk.parseCommit(commit.getParent(0)).getTree());
+            }
+            else {
+                treeWalk.addTree(new EmptyTreeIterator());
+            }
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(AndTreeFilter.create(PathFilter.create(IDS_PATH), TreeFilter.ANY_DIFF));
+            while (treeWalk.next()) {
+                String id = treeWalk.getPathString().substring(IDS_PATH.length() + 1);
+                EntityChange change;
+                if (treeWalk.getRawMode(0) == 0) {
+                    change = new EntityChange(EntityChange.Type.CREATED, id, Transaction.getRev(treeWalk.getObjectId(1)));
+                }
+                else if (treeWalk.getRawMode(1) == 0) {
+                    change = new EntityChange(EntityChange.Type.DELETED, id, Transaction.getRev(treeWalk.getObjectId(0)));
+                }
+                else {
+                    change = new EntityChange(EntityChange.Type.UPDATED, id, Transaction.getRev(treeWalk.getObjectId(1)));
+                }
+                commitChanges.getChanges().add(change);
+            }
         }
+        return commitChanges;
     }
 
     public Set<String> getBranches() throws IOException {
@@ -584,6 +974,16 @@ public class Database implements Closeable {
         return new Transaction(this, branch, lockType);
     }
 
+    public SnapshotTransaction createSnapshot(String branch) throws IOException {
+        return new SnapshotTransaction(this, branch, BranchUtils.getHeadCommit(branch, repository));
+    }
+
+    public SnapshotTransaction createSnapshot(String branch, ObjectId commitId) throws IOException {
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            return new SnapshotTransaction(this, branch, revWalk.parseCommit(commitId));
+        }
+    }
+
     public <R> R inTransaction(String branch, Transaction.LockType lockType, Transactional<R> f) throws Exception {
         return inTransaction(() -> createTransaction(branch, lockType), f);
     }
@@ -623,8 +1023,131 @@ public class Database implements Closeable {
         }
     }
 
+    /*
+     * Replays the changes of a transaction (baseTree -> tree) onto the current head of the branch after its
+     * own commit was rejected. Entities (db/ids) and other files changed only by this transaction are taken
+     * as is, the indexes of the touched entities are recomputed on top of the head. A path that was changed
+     * differently on the head, a reference to an entity deleted on the head or a qualified name taken on the
+     * head meanwhile is a real conflict and fails with CommitConflictException.
+     */
+    void mergeCommit(String branch, ObjectId baseTree, ObjectId tree, String message, String author, String email) throws IOException {
+        PersonIdent authorId = author != null && email != null ? new PersonIdent(author, email) : null;
+        for (int attempt = 1; ; ++attempt) {
+            try (Transaction merged = createTransaction(branch)) {
+                mergeChanges(merged, baseTree, tree);
+                merged.doCommit(message, authorId);
+                return;
+            }
+            catch (RefUpdateRejectedException|RefUpdateLockFailureException e) {
+                logger.debug("Merge commit rejected, attempt no " + attempt);
+                if (attempt >= maxMergeAttempts) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    void mergeChanges(Transaction merged, ObjectId baseTree, ObjectId tree) throws IOException {
+        GitFileSystem gfs = merged.getFileSystem();
+        List<String> paths = new ArrayList<>();
+        List<ObjectId> headIds = new ArrayList<>();
+        List<ObjectId> newIds = new ArrayList<>();
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(baseTree);
+            treeWalk.addTree(tree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (path.startsWith(IDX_PATH + "/")) {
+                    continue;
+                }
+                ObjectId baseId = treeWalk.getRawMode(0) == 0 ? null : treeWalk.getObjectId(0);
+                ObjectId newId = treeWalk.getRawMode(1) == 0 ? null : treeWalk.getObjectId(1);
+                ObjectId headId = Transaction.getObjectId(gfs.getPath("/", path));
+                if (Objects.equals(headId, newId)) {
+                    continue;
+                }
+                if (!Objects.equals(headId, baseId)) {
+                    throw new CommitConflictException(path);
+                }
+                paths.add(path);
+                headIds.add(headId);
+                newIds.add(newId);
+            }
+            for (int i = 0; i < paths.size(); ++i) {
+                String path = paths.get(i);
+                GitPath gitPath = gfs.getPath("/", path);
+                String id = path.startsWith(IDS_PATH + "/") ? path.substring(IDS_PATH.length() + 1) : null;
+                Resource old = id != null && headIds.get(i) != null ? loadResource(createResourceSet(merged), id) : null;
+                if (newIds.get(i) == null) {
+                    if (old != null) {
+                        checkDependencies(old, merged);
+                    }
+                    Files.delete(gitPath);
+                }
+                else {
+                    Files.createDirectories(gitPath.getParent());
+                    Files.write(gitPath, reader.open(newIds.get(i), OBJ_BLOB).getCachedBytes());
+                }
+                if (id == null) {
+                    continue;
+                }
+                if (newIds.get(i) == null) {
+                    deleteResourceIndexes(old, merged);
+                }
+                else {
+                    Resource resource = loadResource(createResourceSet(merged), id);
+                    checkReferencesExist(resource, id, merged);
+                    try {
+                        // the head may have taken the qualified name meanwhile, indexes are checked before this one is added
+                        checkUniqueQName(old, resource, merged);
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new CommitConflictException(path, e);
+                    }
+                    updateResourceIndexes(old, resource, merged);
+                }
+            }
+        }
+    }
+
+    private void checkReferencesExist(Resource resource, String id, Transaction tx) throws IOException {
+        int idLength = id.split("/").length;
+        for (IndexEntry entry: getIndexes().get(REF_IDX).getEntries(resource, tx)) {
+            String[] path = entry.getPath();
+            String refId = String.join("/", Arrays.copyOf(path, path.length - idLength));
+            if (!tx.isResourceExists(new EntityId(refId, 0))) {
+                throw new CommitConflictException(IDS_PATH + "/" + refId);
+            }
+        }
+    }
+
+    public boolean isMergeOnConflict() {
+        return mergeOnConflict;
+    }
+
+    public void setMergeOnConflict(boolean mergeOnConflict) {
+        this.mergeOnConflict = mergeOnConflict;
+    }
+
+    public int getMaxMergeAttempts() {
+        return maxMergeAttempts;
+    }
+
+    public void setMaxMergeAttempts(int maxMergeAttempts) {
+        if (maxMergeAttempts < 1) {
+            throw new IllegalArgumentException("Invalid number of merge attempts: " + maxMergeAttempts);
+        }
+        this.maxMergeAttempts = maxMergeAttempts;
+    }
+
     @Override
     public void close() throws IOException {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        GfsObjectCache.release(repository);
         repository.close();
     }
 
@@ -632,6 +1155,26 @@ public class Database implements Closeable {
         return repository;
     }
 
+    public GfsObjectCache getObjectCache() {
+        return GfsObjectCache.forRepository(repository);
+    }
+
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    public void setGroupCommitter(GroupCommitter groupCommitter) {
+        this.groupCommitter = groupCommitter;
+    }
+
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public void setResourceCache(ResourceCache resourceCache) {
+        this.resourceCache = resourceCache;
+    }
+
     public Repository openRepository(String repoPath) throws IOException, GitAPIException {
         File repoFile = new File(repoPath);
         Repository repository = new File(repoFile, DOT_GIT).exists() ?
@@ -653,8 +1196,38 @@ public class Database implements Closeable {
         getIndexes().put(index.getName(), index);
     }
 
-    public ReadWriteLock getLock() {
-        return lock;
+    public AttributeIndex createAttributeIndex(String name, EClass eClass, EAttribute... attributes) {
+        if (getIndexes().containsKey(name)) {
+            throw new IllegalArgumentException("Index " + name + " already exists");
+        }
+        AttributeIndex index = new AttributeIndex(this, name, eClass, attributes);
+        createIndex(index);
+        return index;
+    }
+
+    public TextIndex createTextIndex(String name, EClass eClass, EAttribute... attributes) {
+        if (getIndexes().containsKey(name)) {
+            throw new IllegalArgumentException("Index " + name + " already exists");
+        }
+        TextIndex index = new TextIndex(this, name, eClass, attributes);
+        createIndex(index);
+        return index;
+    }
+
+    public IndexStore getIndexStore() {
+        return indexStore;
+    }
+
+    public void setIndexStore(IndexStore indexStore) {
+        this.indexStore = indexStore;
+    }
+
+    public ReadWriteLock getLock(String branch) {
+        return lockManager.getLock(branch);
+    }
+
+    public LockManager getLockManager() {
+        return lockManager;
     }
 
     public Events getEvents() {
@@ -0,0 +1,26 @@
+package ru.neoflex.meta.emfgit;
+
+/*
+ * A change of an entity in a commit. rev is the revision the entity got, for a deleted entity the revision it had.
+ */
+public class EntityChange extends EntityId {
+    public enum Type {CREATED, UPDATED, DELETED}
+
+    private Type type;
+
+    public EntityChange(Type type, String id, long rev) {
+        super(id, rev);
+        this.type = type;
+    }
+
+    public EntityChange() {
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+}
@@ -121,20 +121,7 @@ public class Exporter {
     }
 
     public void zipAll(String branch, OutputStream outputStream) throws Exception {
-        database.inTransaction(branch, Transaction.LockType.READ, tx -> {
-            List<EntityId> all = tx.all();
-            try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);) {
-                for (EntityId entityId: all) {
-                    Resource resource = database.loadResource(entityId.getId(), tx);
-                    zipResource(zipOutputStream, resource);
-                }
-                for (EntityId entityId: all) {
-                    Resource resource = database.loadResource(entityId.getId(), tx);
-                    zipResourceReferences(zipOutputStream, resource);
-                }
-            }
-            return null;
-        });
+        new StreamingExporter(this).zipAll(branch, outputStream);
     }
 
     public void zipResourceReferences(ZipOutputStream zipOutputStream, Resource resource) throws IOException, ParserConfigurationException, TransformerException {
@@ -218,17 +205,16 @@ public class Exporter {
         importPath(root, tx);
     }
 
+    public int bulkUnzip(InputStream inputStream, Transaction tx) throws IOException {
+        return new BulkImporter(this).importZip(inputStream, tx);
+    }
+
+    public int bulkImportPath(Path path, Transaction tx) throws IOException {
+        return new BulkImporter(this).importPath(path, tx);
+    }
+
     public void exportAll(String branch, Path path) throws Exception {
-        List<EntityId> all = database.inTransaction(branch, Transaction.LockType.READ, Transaction::all);
-        for (EntityId entityId: all) {
-            database.inTransaction(branch, Transaction.LockType.READ, tx -> {
-                Resource resource = database.loadResource(entityId.getId(), tx);
-                for (EObject eObject: resource.getContents()) {
-                    exportEObject(eObject, path);
-                }
-                return resource;
-            });
-        }
+        new StreamingExporter(this).exportAll(branch, path);
     }
 
     public void importPath(Path path, Transaction tx) throws Exception {
@@ -299,18 +285,32 @@ public class Exporter {
     }
 
     private EObject importExternalReferences(byte[] bytes, Transaction tx) throws Exception {
+        Element rootElement = parseElement(bytes);
+        EObject eObject = applyExternalReferences(rootElement, element -> elementToObject(element, tx));
+        eObject.eResource().save(null);
+        return eObject;
+    }
+
+    public interface ElementResolver {
+        EObject resolve(Element element) throws Exception;
+    }
+
+    public Element parseElement(byte[] bytes) throws Exception {
         DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder documentBuilder = builderFactory.newDocumentBuilder();
         ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
         Document document = documentBuilder.parse(stream);
-        Element rootElement = document.getDocumentElement();
-        EObject eObject = elementToObject(rootElement, tx);
+        return document.getDocumentElement();
+    }
+
+    public EObject applyExternalReferences(Element rootElement, ElementResolver resolver) throws Exception {
+        EObject eObject = resolver.resolve(rootElement);
         unsetExternalReferences(eObject);
         List<Setting> settings = new ArrayList<>();
         NodeList refObjectNodes = rootElement.getElementsByTagName(REF_OBJECT);
         for (int i = 0; i < refObjectNodes.getLength(); ++i) {
             Element refObjectNode = (Element) refObjectNodes.item(i);
-            EObject refObject = elementToObject(refObjectNode, tx);
+            EObject refObject = resolver.resolve(refObjectNode);
             NodeList refNodes = refObjectNode.getElementsByTagName(REFERENCE);
             for (int j = 0; j < refNodes.getLength(); ++j) {
                 Element refNode = (Element) refNodes.item(j);
@@ -334,7 +334,6 @@ public class Exporter {
                 setting.referenceeObject.eSet(setting.eReference, setting.refObject);
             }
         }
-        eObject.eResource().save(null);
         return eObject;
     }
 
@@ -0,0 +1,118 @@
+package ru.neoflex.meta.emfgit;
+
+import com.beijunyi.parallelgit.filesystem.GitFileSystem;
+import com.beijunyi.parallelgit.filesystem.GitPath;
+import com.beijunyi.parallelgit.filesystem.io.DirectoryNode;
+import com.beijunyi.parallelgit.filesystem.io.Node;
+import com.beijunyi.parallelgit.utils.io.GitFileEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static ru.neoflex.meta.emfgit.Database.IDX_PATH;
+
+public class FileIndexStore implements IndexStore {
+    public static final int MAX_SNAPSHOTS = 16;
+
+    private final Map<ObjectId, IndexSnapshot> snapshots = new LinkedHashMap<ObjectId, IndexSnapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, IndexSnapshot> eldest) {
+            return size() > MAX_SNAPSHOTS;
+        }
+    };
+    private final Map<String, IndexSnapshot> heads = new HashMap<>();
+
+    @Override
+    public List<IndexEntry> find(Transaction tx, String indexName, String... path) throws IOException {
+        GitFileEntry entry = tx.getEntry(IDX_PATH + "/" + indexName);
+        if (entry != null) {
+            // not changed by the transaction: answered by the snapshot of the tree alone
+            return entry.isSubtree() ? getSnapshot(tx, indexName, entry.getId()).find(path) : new ArrayList<>();
+        }
+        GitPath indexPath = tx.getFileSystem().getPath("/", IDX_PATH, indexName);
+        Node indexNode = Transaction.getNode(indexPath);
+        if (!(indexNode instanceof DirectoryNode)) {
+            return new ArrayList<>();
+        }
+        GitFileEntry origin = indexNode.getOrigin();
+        IndexSnapshot snapshot = origin.isSubtree() ? getSnapshot(tx, indexName, origin.getId()) : IndexSnapshot.EMPTY;
+        return snapshot.find((DirectoryNode) indexNode, path);
+    }
+
+    // counted in the snapshot of the index the transaction started from, its own changes are left out
+    @Override
+    public int count(Transaction tx, String indexName, String... path) throws IOException {
+        GitFileEntry entry = tx.getEntry(IDX_PATH + "/" + indexName);
+        if (entry == null) {
+            entry = Transaction.getNode(tx.getFileSystem().getPath("/", IDX_PATH, indexName)).getOrigin();
+            if (!entry.isSubtree()) {
+                return find(tx, indexName, path).size();
+            }
+        }
+        return entry.isSubtree() ? getSnapshot(tx, indexName, entry.getId()).count(path) : 0;
+    }
+
+    public synchronized IndexSnapshot getSnapshot(Transaction tx, String indexName, ObjectId treeId) throws IOException {
+        IndexSnapshot snapshot = snapshots.get(treeId);
+        if (snapshot == null) {
+            Repository repository = tx.getDatabase().getRepository();
+            String key = tx.getBranch() + "/" + indexName;
+            IndexSnapshot head = heads.get(key);
+            snapshot = head == null ? IndexSnapshot.build(repository, treeId) : head.update(repository, treeId);
+            snapshots.put(snapshot.getTreeId(), snapshot);
+            heads.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    public List<IndexEntry> walk(Transaction tx, String indexName, String... path) throws IOException {
+        GitFileSystem gfs = tx.getFileSystem();
+        GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
+        GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", path).normalize());
+        try {
+            return Files.walk(indexValuePath).filter(Files::isRegularFile).map(file -> {
+                IndexEntry entry = new IndexEntry();
+                Path relPath = indexPath.relativize(file);
+                entry.setPath(relPath.toString().split("/"));
+                try {
+                    byte[] content = Files.readAllBytes(file);
+                    entry.setContent(content);
+                    return entry;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public void update(Transaction tx, String indexName, Collection<IndexEntry> toDelete, Collection<IndexEntry> toPut) throws IOException {
+        GitFileSystem gfs = tx.getFileSystem();
+        GitPath indexPath = gfs.getPath("/", IDX_PATH, indexName);
+        Set<String> deleted = new HashSet<>();
+        for (IndexEntry entry : toDelete) {
+            GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", entry.getPath()).normalize());
+            deleted.add(indexValuePath.toString());
+        }
+        for (IndexEntry entry : toPut) {
+            GitPath indexValuePath = indexPath.resolve(gfs.getPath(".", entry.getPath()).normalize());
+            if (!deleted.remove(indexValuePath.toString()) && Files.exists(indexValuePath)) {
+                throw new IOException("Index file " + indexValuePath.toString() + " already exists");
+            }
+            Files.createDirectories(indexValuePath.getParent());
+            Files.write(indexValuePath, entry.getContent());
+        }
+        for (String indexValuePathString : deleted) {
+            GitPath indexValuePath = gfs.getPath(indexValuePathString);
+            Files.delete(indexValuePath);
+        }
+    }
+}
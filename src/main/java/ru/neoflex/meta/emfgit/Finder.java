@@ -1,32 +1,37 @@
 package ru.neoflex.meta.emfgit;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.EClass;
-import org.eclipse.emf.ecore.EObject;
-import org.eclipse.emf.ecore.EStructuralFeature;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.eclipse.emf.ecore.util.EcoreUtil;
 
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.util.*;
-
-import static java.lang.Integer.min;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Finder {
     private String warning;
     private int skip = 0;
     private int limit = -1;
     private int idsLoaded = 0;
-    private long idsLoadedMs = 0;
-    private int resLoaded = 0;
-    private long resLoadedMs = 0;
+    private AtomicLong idsLoadedNanos = new AtomicLong();
+    private AtomicInteger resLoaded = new AtomicInteger();
+    private AtomicLong resLoadedMs = new AtomicLong();
+    private ForkJoinPool pool;
+    private int batchSize = 0;
     private ResourceSet resourceSet;
+    private QueryPlan plan;
+    private CompiledQuery compiled;
     private ObjectNode selector = new ObjectMapper().createObjectNode();
 
     public static Finder create() {
@@ -57,343 +62,154 @@ public class Finder {
         return this;
     }
 
+    public Finder parallel() {
+        return parallel(ForkJoinPool.commonPool());
+    }
 
-    public Finder execute(Transaction tx) throws IOException {
-        long startTime = System.currentTimeMillis();
-        Database database = tx.getDatabase();
-        List<EntityId> ids = findIds(selector, tx);
-        long idsLoadedTime = System.currentTimeMillis();
-        idsLoaded = ids.size();
-        resourceSet = database.createResourceSet(tx);
-        int startIndex = skip <= 0 ? 0 : min(skip, ids.size());
-        int length = limit <= 0 ? ids.size() - startIndex : min(limit, ids.size() - startIndex);
-        for (EntityId entityId: ids.subList(startIndex, startIndex + length)) {
-            Entity entity = tx.load(entityId);
-            Resource resource = database.createResourceSet(tx).createResource(database.createURI(entity.getId()));
-            resource.setTimeStamp(entity.getRev());
-            database.loadResource(entity.getContent(), resource);
-            if (match(entity, resource.getContents().get(0), selector)) {
-                resourceSet.getResources().add(resource);
-            }
-        }
-        resLoaded = length;
-        long resLoadedTime = System.currentTimeMillis();
-        idsLoadedMs = idsLoadedTime - startTime;
-        resLoadedMs = resLoadedTime - idsLoadedTime;
+    public Finder parallel(ForkJoinPool pool) {
+        this.pool = pool;
         return this;
     }
 
-    private boolean match(EntityId entityId, EObject object, ObjectNode query) throws IOException {
-        JsonNode _id = query.get("id");
-        if (_id != null && !Objects.equals(_id.textValue(), entityId.getId())) {
-            return false;
-        }
-        JsonNode _rev = query.get("rev");
-        if (_rev != null && !Objects.equals(_rev.textValue(), entityId.getRev())) {
-            return false;
-        }
-        JsonNode contents = query.get("contents");
-        if (contents != null) {
-            if (!matchNodes(object, contents)) {
-                return false;
-            }
-        }
-        return true;
+    public Finder batchSize(int value) {
+        batchSize = value;
+        return this;
     }
 
-    private boolean matchOp(String op, Object object, JsonNode query) {
-        if ("$and".equals(op)) {
-            return matchAnd(object, query);
-        }
-        if ("$or".equals(op)) {
-            return matchOr(object, query);
-        }
-        if ("$not".equals(op)) {
-            return matchNot(object, query);
-        }
-        if ("$nor".equals(op)) {
-            return matchNor(object, query);
-        }
-        if ("$all".equals(op)) {
-            return matchAll(object, query);
-        }
-        if ("$elemMatch".equals(op)) {
-            return matchElemMatch(object, query);
-        }
-        if ("$allMatch".equals(op)) {
-            return matchAllMatch(object, query);
-        }
-        if ("$lt".equals(op)) {
-            return matchLt(object, query);
-        }
-        if ("$gt".equals(op)) {
-            return matchGt(object, query);
-        }
-        if ("$lte".equals(op)) {
-            return matchLe(object, query);
-        }
-        if ("$gte".equals(op)) {
-            return matchGe(object, query);
-        }
-        if ("$eq".equals(op)) {
-            return object.toString().equals(query.asText());
-        }
-        if ("$ne".equals(op)) {
-            return !object.equals(query);
-        }
-        if ("$exists".equals(op)) {
-            return query.asBoolean() == (object != null);
-        }
-        if ("$size".equals(op)) {
-            return matchSize(object, query);
-        }
-        if ("$type".equals(op)) {
-            return query.asText().equals(object.getClass().getSimpleName());
-        }
-        if ("$in".equals(op)) {
-            return matchIn(object, query);
-        }
-        if ("$nin".equals(op)) {
-            return !matchIn(object, query);
-        }
-        if ("$regex".equals(op)) {
-            return object.toString().matches(query.asText());
-        }
-        return false;
-    }
 
-    private int compare(Object object, JsonNode query) {
-        if (object instanceof Number && query.isNumber()) {
-            return new BigDecimal(object.toString()).compareTo(query.decimalValue());
-        }
-        if (object instanceof String && query.isTextual()) {
-            return ((String) object).compareTo(query.asText());
+    public Finder execute(Transaction tx) throws IOException {
+        resourceSet = tx.getDatabase().createResourceSet(tx);
+        try (Stream<Resource> resources = stream(tx)) {
+            resources.forEach(resource -> resourceSet.getResources().add(resource));
         }
-        if (object instanceof Boolean && query.isBoolean()) {
-            return new Boolean((Boolean) object).compareTo(query.asBoolean());
+        catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        throw new IllegalArgumentException("Can't compare values: " + object.toString() + ", " + query.toString());
-    }
-
-    private boolean matchSize(Object object, JsonNode query) {
-        return object instanceof List && ((List) object).size() == query.asInt();
-    }
-    private boolean matchLt(Object object, JsonNode query) {
-        return compare(object, query) < 0;
-    }
-
-    private boolean matchLe(Object object, JsonNode query) {
-        return compare(object, query) <= 0;
-    }
-
-    private boolean matchGt(Object object, JsonNode query) {
-        return compare(object, query) > 0;
+        return this;
     }
 
-    private boolean matchGe(Object object, JsonNode query) {
-        return compare(object, query) >= 0;
+    public Iterator<Resource> iterator(Transaction tx) throws IOException {
+        return stream(tx).iterator();
     }
 
-    private boolean matchElemMatch(Object object, JsonNode query) {
-        if (!(object instanceof List)) {
-            return false;
+    public Stream<Resource> stream(Transaction tx) throws IOException {
+        long startTime = System.nanoTime();
+        idsLoaded = 0;
+        resLoaded.set(0);
+        resLoadedMs.set(0);
+        compiled = CompiledQuery.compile(selector);
+        Stream<EntityId> found = findIds(selector, tx);
+        idsLoadedNanos.set(System.nanoTime() - startTime);
+        Stream<EntityId> ids = timed(found).peek(entityId -> plan.updateCost(++idsLoaded));
+        Stream<Resource> resources = pool == null ?
+                ids.map(entityId -> load(entityId, tx)).filter(Objects::nonNull) :
+                parallelLoad(ids, tx);
+        if (skip > 0) {
+            resources = resources.skip(skip);
         }
-        for (Object objectNode: (List) object) {
-            if (matchNodes(objectNode, query)) {
-                return true;
-            }
+        if (limit > 0) {
+            resources = resources.limit(limit);
         }
-        return false;
-    }
-
-    private boolean matchAllMatch(Object object, JsonNode query) {
-        if (!(object instanceof List)) {
-            return false;
-        }
-        for (Object objectNode: (List) object) {
-            if (!matchNodes(objectNode, query)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private boolean matchNot(Object object, JsonNode query) {
-        return !matchNodes(object, query);
+        return resources;
     }
 
-    private boolean matchAll(Object object, JsonNode query) {
-        if (!(object instanceof List)) {
-            return false;
+    private Resource load(EntityId entityId, Transaction tx) {
+        long loadStart = System.currentTimeMillis();
+        Database database = tx.getDatabase();
+        try {
+            Entity entity = tx.load(entityId);
+            Resource resource = database.createResourceSet(tx).createResource(database.createURI(entity.getId()));
+            resource.setTimeStamp(entity.getRev());
+            database.loadResource(entity.getContent(), resource);
+            resLoaded.incrementAndGet();
+            return compiled.matches(entity, resource.getContents().get(0)) ? resource : null;
         }
-        if (!query.isArray()) {
-            return false;
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        for (JsonNode queryNode: query) {
-            boolean found = false;
-            for (Object objectNode: (List) object) {
-                if (objectNode.equals(queryNode)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                return false;
-            }
+        finally {
+            resLoadedMs.addAndGet(System.currentTimeMillis() - loadStart);
         }
-        return true;
     }
 
-    private boolean matchNor(Object object, JsonNode query) {
-        if (!query.isArray()) {
-            return false;
-        }
-        for (JsonNode node: query) {
-            if (matchNodes(object, node)) {
-                return false;
-            }
-        }
-        return true;
-    }
+    // ids are produced lazily, the time spent producing them is added to idsLoadedNanos as the stream is consumed
+    private Stream<EntityId> timed(Stream<EntityId> ids) {
+        Spliterator<EntityId> spliterator = ids.spliterator();
+        Spliterator<EntityId> timed = new Spliterators.AbstractSpliterator<EntityId>(Long.MAX_VALUE,
+                spliterator.characteristics() & (Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL)) {
+            private EntityId next;
 
-    private boolean matchIn(Object object, JsonNode query) {
-        if (!query.isArray()) {
-            return false;
-        }
-        for (JsonNode node: query) {
-            if (object.toString().equals(node.asText())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean matchNodes(Object object, JsonNode query) {
-        if (object == null) {
-            return query == null || query.isNull();
-        }
-        if (query == null) {
-            return true;
-        }
-        if (object instanceof EObject || object instanceof List) {
-            if (!query.isObject()) {
-                return false;
+            @Override
+            public boolean tryAdvance(Consumer<? super EntityId> action) {
+                long start = System.nanoTime();
+                boolean advanced;
+                try {
+                    advanced = spliterator.tryAdvance(entityId -> next = entityId);
+                }
+                finally {
+                    idsLoadedNanos.addAndGet(System.nanoTime() - start);
+                }
+                if (advanced) {
+                    action.accept(next);
+                }
+                return advanced;
             }
-            return matchFields(object, query);
-        }
-        return matchPlain(object, query);
+        };
+        return StreamSupport.stream(timed, false).onClose(ids::close);
     }
 
-    private boolean matchPlain(Object object, JsonNode query) {
-        if (query.isObject()) {
-            return matchFields(object, query);
-        }
-        return object.toString().equals(query.asText());
-    }
+    private Stream<Resource> parallelLoad(Stream<EntityId> ids, Transaction tx) {
+        // candidates are loaded in waves of batchSize and emitted in id order, so skip/limit stay deterministic
+        Iterator<EntityId> idIterator = ids.iterator();
+        int waveSize = batchSize > 0 ? batchSize : pool.getParallelism() * 16;
+        Iterator<Resource> resources = new Iterator<Resource>() {
+            private final Deque<Resource> ready = new ArrayDeque<>();
 
-    private boolean matchAnd(Object object, JsonNode query) {
-        if (!query.isArray()) {
-            return false;
-        }
-        for (JsonNode node: query) {
-            if (!matchNodes(object, node)) {
-                return false;
+            private boolean advance() {
+                while (ready.isEmpty() && idIterator.hasNext()) {
+                    List<ForkJoinTask<Resource>> tasks = new ArrayList<>(waveSize);
+                    while (tasks.size() < waveSize && idIterator.hasNext()) {
+                        EntityId entityId = idIterator.next();
+                        tasks.add(pool.submit(() -> load(entityId, tx)));
+                    }
+                    for (ForkJoinTask<Resource> task: tasks) {
+                        Resource resource = task.join();
+                        if (resource != null) {
+                            ready.add(resource);
+                        }
+                    }
+                }
+                return !ready.isEmpty();
             }
-        }
-        return true;
-    }
 
-    private Object getField(Object object, String name) {
-        if (object instanceof EObject) {
-            EObject eObject = (EObject) object;
-            EClass eClass = eObject.eClass();
-            EStructuralFeature sf = eClass.getEStructuralFeature(name);
-            if (sf != null) {
-                return eObject.eGet(sf);
+            @Override
+            public boolean hasNext() {
+                return advance();
             }
-        }
-        return null;
-    }
 
-    private boolean matchFields(Object object, JsonNode query) {
-        if (!query.isObject()) {
-            return false;
-        }
-        for (Iterator<String> it = query.fieldNames(); it.hasNext();) {
-            String fieldName = it.next();
-            JsonNode queryNode = query.get(fieldName);
-            if (fieldName.startsWith("$")) {
-                if (!matchOp(fieldName, object, queryNode)) {
-                    return false;
-                }
-                continue;
-            }
-            if (fieldName.equals("eClass")) {
-                if (!EcoreUtil.getURI(((EObject) object).eClass()).toString().equals(queryNode.asText())) {
-                    return false;
+            @Override
+            public Resource next() {
+                if (!advance()) {
+                    throw new NoSuchElementException();
                 }
-                continue;
+                return ready.poll();
             }
-            Object objectNode = getField(object, unescape(fieldName));
-            if (!matchNodes(objectNode, queryNode)) {
-                return false;
-            }
-        }
-        return true;
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(resources, Spliterator.ORDERED), false)
+                .onClose(ids::close);
     }
 
-    private boolean matchOr(Object object, JsonNode query) {
-        if (!query.isArray()) {
-            return false;
-        }
-        for (JsonNode node: query) {
-            if (matchNodes(object, node)) {
-                return true;
-            }
+    private Stream<EntityId> findIds(ObjectNode query, Transaction tx) throws IOException {
+        warning = null;
+        plan = new QueryPlanner(tx.getDatabase()).plan(query, tx);
+        if (plan.getAccessPath() == QueryPlan.AccessPath.FULL_SCAN) {
+            warning = "No index used";
         }
-        return false;
+        return plan.ids(tx);
     }
 
-    private String unescape(String fieldName) {
-        return fieldName.replaceAll("^[\\\\]\\$", "\\$");
-    }
-
-    private List<EntityId> findIds(ObjectNode query, Transaction tx) throws IOException {
-        Database database = tx.getDatabase();
-        if (query.has("id")) {
-            String id = query.get("id").asText();
-            EntityId entityId = new EntityId(id, 0);
-            if (Files.exists(tx.getIdPath(entityId))) {
-                return Collections.singletonList(entityId);
-            }
-            return Collections.emptyList();
-        }
-        JsonNode contents = query.get("contents");
-        if (contents != null && contents instanceof ObjectNode) {
-            JsonNode classURI = contents.get("eClass");
-            if (classURI != null) {
-                ResourceSet resourceSet = database.createResourceSet(tx);
-                EClass eClass = (EClass) resourceSet.getEObject(URI.createURI(classURI.asText()), false);
-                if (eClass != null) {
-                    String name = null;
-                    EStructuralFeature nameSF = database.getQNameFeature(eClass);
-                    if (nameSF != null) {
-                        JsonNode nameNode = contents.get(nameSF.getName());
-                        if (nameNode != null) {
-                            name = nameNode.asText();
-                        }
-                    }
-                    List<IndexEntry> ieList = database.findEClassIndexEntries(eClass, name, tx);
-                    List<EntityId> result = new ArrayList<>();
-                    for (IndexEntry ie: ieList) {
-                        result.add(new EntityId(new String(ie.getContent()), 0));
-                    }
-                    return result;
-                }
-            }
-        }
-        warning = "No index used";
-        return tx.all();
+    public QueryPlan getPlan() {
+        return plan;
     }
 
     public String getWarning() {
@@ -416,9 +232,13 @@ public class Finder {
     public ObjectNode getExecutionStats() {
         ObjectNode executionStats = new ObjectMapper().createObjectNode();
         executionStats.put("idsLoaded", idsLoaded);
-        executionStats.put("idsLoadedMs", idsLoadedMs);
-        executionStats.put("resLoaded", resLoaded);
-        executionStats.put("resLoadedMs", resLoadedMs);
+        executionStats.put("idsLoadedMs", TimeUnit.NANOSECONDS.toMillis(idsLoadedNanos.get()));
+        executionStats.put("resLoaded", resLoaded.get());
+        executionStats.put("resLoadedMs", resLoadedMs.get());
+        if (plan != null) {
+            executionStats.put("plan", plan.toString());
+            executionStats.put("cost", plan.getCost());
+        }
         return executionStats;
     }
 }
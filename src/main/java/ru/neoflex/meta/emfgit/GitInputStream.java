@@ -3,9 +3,7 @@ package ru.neoflex.meta.emfgit;
 import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.URIConverter;
-import org.eclipse.emf.ecore.xmi.impl.XMIResourceImpl;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
@@ -34,7 +32,7 @@ public class GitInputStream extends InputStream implements URIConverter.Loadable
         EntityId entityId = new EntityId(id);
         Entity entity = transaction.load(entityId);
         resource.unload();
-        ((XMIResourceImpl) resource).doLoad(new ByteArrayInputStream(entity.getContent()), options);
+        db.loadResource(entity.getContent(), resource, options);
         long rev = entity.getRev();
         resource.setTimeStamp(rev);
         URI newURI = db.createURI(id, rev);
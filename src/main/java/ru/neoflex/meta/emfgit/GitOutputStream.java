@@ -3,7 +3,6 @@ package ru.neoflex.meta.emfgit;
 import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.URIConverter;
-import org.eclipse.emf.ecore.xmi.impl.XMIResourceImpl;
 import org.eclipse.jgit.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
@@ -75,9 +74,7 @@ public class GitOutputStream extends ByteArrayOutputStream implements URIConvert
             resource.setURI(db.createURI(id));
         }
         db.getEvents().fireBeforeSave(oldResource, resource, transaction);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        ((XMIResourceImpl) resource).doSave(os, options);
-        byte[] content = os.toByteArray();
+        byte[] content = db.saveResource(resource, options);
         Entity entity = new Entity(id, resource.getTimeStamp(), content);
         if (!isExists) {
             transaction.create(entity);
@@ -0,0 +1,263 @@
+package ru.neoflex.meta.emfgit;
+
+import com.beijunyi.parallelgit.filesystem.Gfs;
+import com.beijunyi.parallelgit.filesystem.GitFileSystem;
+import com.beijunyi.parallelgit.filesystem.commands.GfsCommit;
+import com.beijunyi.parallelgit.utils.exceptions.RefUpdateLockFailureException;
+import com.beijunyi.parallelgit.utils.exceptions.RefUpdateRejectedException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Coalesces the commits of concurrent transactions. A transaction hands over the tree it started from
+ * and the tree it produced; a committer thread per branch collects the change sets that arrive within
+ * windowMs, applies each of them on top of the head and the change sets before it, and writes a single
+ * commit for the batch. A change set whose base is the accumulated tree is taken as is, any other one is
+ * merged the way Database.mergeCommit does it: conflicting paths fail with CommitConflictException, deleted
+ * entities must not be referenced, referenced entities must exist and the indexes are recomputed.
+ * A change set that fails is rolled back and only its transaction gets the error. When the branch moves
+ * under the batch, it is applied again on the new head, at most Database.getMaxMergeAttempts() times.
+ * The committer thread of a branch stops after IDLE_TIMEOUT_MS without change sets.
+ */
+public class GroupCommitter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+    public static final long DEFAULT_WINDOW_MS = 5;
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final long IDLE_TIMEOUT_MS = 1000;
+
+    private final Database database;
+    private final long windowMs;
+    private final int maxBatch;
+    private final Map<String, BranchCommitter> committers = new HashMap<>();
+    private boolean closed = false;
+
+    public GroupCommitter(Database database, long windowMs, int maxBatch) {
+        if (windowMs < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("Invalid window or batch size: " + windowMs + ", " + maxBatch);
+        }
+        this.database = database;
+        this.windowMs = windowMs;
+        this.maxBatch = maxBatch;
+    }
+
+    public GroupCommitter(Database database) {
+        this(database, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH);
+    }
+
+    public Future<RevCommit> submit(String branch, ObjectId baseTree, ObjectId tree, String message, PersonIdent author) throws IOException {
+        Request request = new Request(baseTree, tree, message, author);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Group committer is closed");
+            }
+            committers.computeIfAbsent(branch, BranchCommitter::new).queue.add(request);
+        }
+        return request.result;
+    }
+
+    public RevCommit commit(String branch, ObjectId baseTree, ObjectId tree, String message, PersonIdent author) throws IOException {
+        try {
+            return submit(branch, baseTree, tree, message, author).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for commit");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        List<BranchCommitter> toStop;
+        synchronized (this) {
+            closed = true;
+            toStop = new ArrayList<>(committers.values());
+        }
+        for (BranchCommitter committer: toStop) {
+            try {
+                committer.thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private static class Request {
+        final ObjectId baseTree;
+        final ObjectId tree;
+        final String message;
+        final PersonIdent author;
+        final CompletableFuture<RevCommit> result = new CompletableFuture<>();
+
+        Request(ObjectId baseTree, ObjectId tree, String message, PersonIdent author) {
+            this.baseTree = baseTree;
+            this.tree = tree;
+            this.message = message;
+            this.author = author;
+        }
+    }
+
+    private class BranchCommitter implements Runnable {
+        final String branch;
+        final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+        final Thread thread;
+
+        BranchCommitter(String branch) {
+            this.branch = branch;
+            this.thread = new Thread(this, "group-commit-" + branch);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long idleSince = System.nanoTime();
+                while (true) {
+                    Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (isClosed() || System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS)) {
+                            // submit() queues under the same lock, so nothing is left behind
+                            synchronized (GroupCommitter.this) {
+                                if (queue.isEmpty()) {
+                                    committers.remove(branch, this);
+                                    return;
+                                }
+                            }
+                        }
+                        continue;
+                    }
+                    List<Request> batch = new ArrayList<>();
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                    while (batch.size() < maxBatch) {
+                        Request next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    commitBatch(batch);
+                    idleSince = System.nanoTime();
+                }
+            }
+            catch (InterruptedException e) {
+                synchronized (GroupCommitter.this) {
+                    committers.remove(branch, this);
+                }
+                for (Request request: queue) {
+                    request.result.completeExceptionally(new InterruptedIOException("Group committer stopped"));
+                }
+            }
+        }
+
+        private void commitBatch(List<Request> batch) {
+            List<Request> pending = batch;
+            for (int attempt = 1; ; ++attempt) {
+                List<Request> applied = new ArrayList<>();
+                // no branch lock: the transactions waiting for the batch hold theirs, an EXCLUSIVE one among them too
+                try (Transaction merged = database.createTransaction(branch, Transaction.LockType.READ)) {
+                    GitFileSystem gfs = merged.getFileSystem();
+                    RevCommit head = gfs.getStatusProvider().commit();
+                    for (Request request: pending) {
+                        ObjectId checkpoint = gfs.flush();
+                        try {
+                            apply(merged, checkpoint, request);
+                            applied.add(request);
+                        }
+                        catch (IOException|RuntimeException e) {
+                            gfs.updateOrigin(checkpoint);
+                            gfs.reset();
+                            request.result.completeExceptionally(e);
+                        }
+                    }
+                    if (applied.isEmpty()) {
+                        return;
+                    }
+                    GfsCommit commit = Gfs.commit(gfs).message(getMessage(applied));
+                    if (applied.size() == 1 && applied.get(0).author != null) {
+                        commit.author(applied.get(0).author);
+                    }
+                    GfsCommit.Result result = commit.execute();
+                    // NO_CHANGE: the head contains the change sets already
+                    RevCommit revCommit = result.isSuccessful() ? result.getCommit() : head;
+                    logger.debug("Group commit of " + applied.size() + " change set(s) to " + branch);
+                    for (Request request: applied) {
+                        request.result.complete(revCommit);
+                    }
+                    return;
+                }
+                catch (RefUpdateRejectedException|RefUpdateLockFailureException e) {
+                    logger.debug("Group commit to " + branch + " rejected, attempt no " + attempt);
+                    if (attempt >= database.getMaxMergeAttempts()) {
+                        for (Request request: applied) {
+                            request.result.completeExceptionally(e);
+                        }
+                        return;
+                    }
+                    pending = applied;
+                }
+                catch (Throwable e) {
+                    for (Request request: pending) {
+                        request.result.completeExceptionally(e);
+                    }
+                    return;
+                }
+            }
+        }
+
+        // the transaction of a change set based on the accumulated tree has already checked it against that tree
+        private void apply(Transaction merged, ObjectId accumulated, Request request) throws IOException {
+            if (accumulated.equals(request.baseTree)) {
+                GitFileSystem gfs = merged.getFileSystem();
+                gfs.updateOrigin(request.tree);
+                gfs.reset();
+            }
+            else {
+                database.mergeChanges(merged, request.baseTree, request.tree);
+            }
+        }
+
+        private String getMessage(List<Request> applied) {
+            if (applied.size() == 1) {
+                return applied.get(0).message;
+            }
+            StringJoiner joiner = new StringJoiner("\n");
+            for (Request request: applied) {
+                joiner.add(request.message);
+            }
+            return joiner.toString();
+        }
+    }
+}
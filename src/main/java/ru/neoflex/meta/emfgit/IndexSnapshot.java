@@ -0,0 +1,220 @@
+package ru.neoflex.meta.emfgit;
+
+import com.beijunyi.parallelgit.filesystem.io.DirectoryNode;
+import com.beijunyi.parallelgit.filesystem.io.FileNode;
+import com.beijunyi.parallelgit.filesystem.io.Node;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.IO;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+public class IndexSnapshot {
+    public static final IndexSnapshot EMPTY = new IndexSnapshot(null, new String[0], new byte[0][]);
+
+    private final ObjectId treeId;
+    private final String[] paths;
+    private final byte[][] contents;
+
+    private IndexSnapshot(ObjectId treeId, String[] paths, byte[][] contents) {
+        this.treeId = treeId;
+        this.paths = paths;
+        this.contents = contents;
+    }
+
+    public static IndexSnapshot build(Repository repository, ObjectId treeId) throws IOException {
+        List<String> paths = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(treeId);
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                paths.add(treeWalk.getPathString());
+                contents.add(reader.open(treeWalk.getObjectId(0), OBJ_BLOB).getCachedBytes());
+            }
+        }
+        String[] pathArray = paths.toArray(new String[0]);
+        byte[][] contentArray = contents.toArray(new byte[0][]);
+        sort(pathArray, contentArray);
+        return new IndexSnapshot(treeId.copy(), pathArray, contentArray);
+    }
+
+    public IndexSnapshot update(Repository repository, ObjectId newTreeId) throws IOException {
+        SortedMap<String, byte[]> changes = new TreeMap<>();
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(treeId);
+            treeWalk.addTree(newTreeId);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            while (treeWalk.next()) {
+                if (treeWalk.getRawMode(1) == 0) {
+                    changes.put(treeWalk.getPathString(), null);
+                }
+                else {
+                    changes.put(treeWalk.getPathString(), reader.open(treeWalk.getObjectId(1), OBJ_BLOB).getCachedBytes());
+                }
+            }
+        }
+        return apply(newTreeId.copy(), changes);
+    }
+
+    private IndexSnapshot apply(ObjectId newTreeId, SortedMap<String, byte[]> changes) {
+        List<String> newPaths = new ArrayList<>(paths.length + changes.size());
+        List<byte[]> newContents = new ArrayList<>(paths.length + changes.size());
+        int i = 0;
+        for (Map.Entry<String, byte[]> change: changes.entrySet()) {
+            while (i < paths.length && paths[i].compareTo(change.getKey()) < 0) {
+                newPaths.add(paths[i]);
+                newContents.add(contents[i]);
+                ++i;
+            }
+            if (i < paths.length && paths[i].equals(change.getKey())) {
+                ++i;
+            }
+            if (change.getValue() != null) {
+                newPaths.add(change.getKey());
+                newContents.add(change.getValue());
+            }
+        }
+        while (i < paths.length) {
+            newPaths.add(paths[i]);
+            newContents.add(contents[i]);
+            ++i;
+        }
+        return new IndexSnapshot(newTreeId, newPaths.toArray(new String[0]), newContents.toArray(new byte[0][]));
+    }
+
+    public List<IndexEntry> find(String... path) {
+        List<IndexEntry> result = new ArrayList<>();
+        find(String.join("/", normalize(path)), result);
+        return result;
+    }
+
+    public List<IndexEntry> find(DirectoryNode indexNode, String... path) throws IOException {
+        List<String> names = normalize(path);
+        List<IndexEntry> result = new ArrayList<>();
+        Node node = indexNode;
+        for (String name: names) {
+            if (!node.isModified()) {
+                find(String.join("/", names), result);
+                return result;
+            }
+            if (!(node instanceof DirectoryNode)) {
+                return result;
+            }
+            node = ((DirectoryNode) node).getChild(name);
+            if (node == null) {
+                return result;
+            }
+        }
+        collect(String.join("/", names), node, result);
+        return result;
+    }
+
+    private void collect(String path, Node node, List<IndexEntry> result) throws IOException {
+        if (!node.isModified()) {
+            find(path, result);
+        }
+        else if (node instanceof DirectoryNode) {
+            DirectoryNode dir = (DirectoryNode) node;
+            for (String name: dir.listChildren()) {
+                Node child = dir.getChild(name);
+                if (child != null) {
+                    collect(path.length() == 0 ? name : path + "/" + name, child, result);
+                }
+            }
+        }
+        else {
+            try (InputStream is = ((FileNode) node).getInputStream()) {
+                ByteBuffer buffer = IO.readWholeStream(is, (int) node.getSize());
+                IndexEntry entry = new IndexEntry();
+                entry.setPath(path.split("/"));
+                entry.setContent(Arrays.copyOf(buffer.array(), buffer.limit()));
+                result.add(entry);
+            }
+        }
+    }
+
+    private void find(String prefix, List<IndexEntry> result) {
+        if (prefix.length() == 0) {
+            for (int i = 0; i < paths.length; ++i) {
+                result.add(entry(i));
+            }
+            return;
+        }
+        int exact = Arrays.binarySearch(paths, prefix);
+        if (exact >= 0) {
+            result.add(entry(exact));
+        }
+        String dirPrefix = prefix + "/";
+        for (int i = lowerBound(dirPrefix); i < paths.length && paths[i].startsWith(dirPrefix); ++i) {
+            result.add(entry(i));
+        }
+    }
+
+    public int count(String... path) {
+        String prefix = String.join("/", normalize(path));
+        if (prefix.length() == 0) {
+            return paths.length;
+        }
+        int exact = Arrays.binarySearch(paths, prefix) >= 0 ? 1 : 0;
+        // '0' follows '/', so every path under prefix sorts before prefix + "0"
+        return exact + lowerBound(prefix + "0") - lowerBound(prefix + "/");
+    }
+
+    static List<String> normalize(String... path) {
+        List<String> names = new ArrayList<>();
+        for (String element: path) {
+            for (String name: element.split("/")) {
+                if (name.length() > 0 && !name.equals(".")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    public ObjectId getTreeId() {
+        return treeId;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    private IndexEntry entry(int i) {
+        IndexEntry entry = new IndexEntry();
+        entry.setPath(paths[i].split("/"));
+        entry.setContent(contents[i].clone());
+        return entry;
+    }
+
+    private int lowerBound(String key) {
+        int i = Arrays.binarySearch(paths, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static void sort(String[] paths, byte[][] contents) {
+        Integer[] order = new Integer[paths.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> paths[i]));
+        String[] sortedPaths = new String[paths.length];
+        byte[][] sortedContents = new byte[contents.length][];
+        for (int i = 0; i < order.length; ++i) {
+            sortedPaths[i] = paths[order[i]];
+            sortedContents[i] = contents[order[i]];
+        }
+        System.arraycopy(sortedPaths, 0, paths, 0, paths.length);
+        System.arraycopy(sortedContents, 0, contents, 0, contents.length);
+    }
+}
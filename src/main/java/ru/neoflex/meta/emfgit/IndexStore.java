@@ -0,0 +1,32 @@
+package ru.neoflex.meta.emfgit;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public interface IndexStore {
+    List<IndexEntry> find(Transaction tx, String indexName, String... path) throws IOException;
+
+    // the entries stored at exactly the given paths, keyed by the normalized path; stores may serve them in one pass
+    default Map<List<String>, IndexEntry> get(Transaction tx, String indexName, Collection<String[]> paths) throws IOException {
+        Map<List<String>, IndexEntry> result = new HashMap<>();
+        for (String[] path: paths) {
+            List<String> key = IndexSnapshot.normalize(path);
+            for (IndexEntry entry: find(tx, indexName, path)) {
+                if (IndexSnapshot.normalize(entry.getPath()).equals(key)) {
+                    result.put(key, entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    // number of entries under path, a statistic for query planning: stores may answer it without reading them
+    default int count(Transaction tx, String indexName, String... path) throws IOException {
+        return find(tx, indexName, path).size();
+    }
+
+    void update(Transaction tx, String indexName, Collection<IndexEntry> toDelete, Collection<IndexEntry> toPut) throws IOException;
+}
@@ -0,0 +1,104 @@
+package ru.neoflex.meta.emfgit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Read-write lock per branch: WRITE transactions share the read lock of their branch, EXCLUSIVE ones take
+ * its write lock, READ transactions take none. With a positive lockTimeoutMs waiting is bounded and
+ * fails with IOException.
+ */
+public class LockManager {
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile long lockTimeoutMs = 0;
+
+    public ReadWriteLock getLock(String branch) {
+        return locks.computeIfAbsent(branch, b -> new ReentrantReadWriteLock());
+    }
+
+    public void lock(String branch, Transaction.LockType lockType) throws IOException {
+        Lock lock = getLock(branch, lockType);
+        if (lock == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            // the timed tryLock honours the lock's fairness policy, unlike the barging tryLock()
+            if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+                acquired.incrementAndGet();
+                return;
+            }
+            contended.incrementAndGet();
+            long timeout = lockTimeoutMs;
+            if (timeout > 0) {
+                if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new IOException("Timeout waiting for " + lockType + " lock on branch " + branch);
+                }
+            }
+            else {
+                lock.lockInterruptibly();
+            }
+            acquired.incrementAndGet();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + lockType + " lock on branch " + branch);
+        }
+        finally {
+            long waited = System.nanoTime() - start;
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+    }
+
+    public void unlock(String branch, Transaction.LockType lockType) {
+        Lock lock = getLock(branch, lockType);
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    private Lock getLock(String branch, Transaction.LockType lockType) {
+        if (lockType == Transaction.LockType.EXCLUSIVE) {
+            return getLock(branch).writeLock();
+        }
+        if (lockType == Transaction.LockType.WRITE) {
+            return getLock(branch).readLock();
+        }
+        return null;
+    }
+
+    public long getLockTimeoutMs() {
+        return lockTimeoutMs;
+    }
+
+    public void setLockTimeoutMs(long lockTimeoutMs) {
+        this.lockTimeoutMs = lockTimeoutMs;
+    }
+
+    public ObjectNode getStats() {
+        ObjectNode stats = new ObjectMapper().createObjectNode();
+        stats.put("acquired", acquired.get());
+        stats.put("contended", contended.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("waitMs", TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+        stats.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,185 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.EClass;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class QueryPlan {
+    public enum AccessPath {ID, NAME, NAME_FILTER, ECLASS, ATTRIBUTE, TEXT, FULL_SCAN}
+
+    // ids of the entries an index plan selects
+    interface Lookup {
+        List<String> find(Transaction tx) throws IOException;
+    }
+
+    private final AccessPath accessPath;
+    private final List<EClass> eClasses;
+    private final List<String> values;
+    private final Predicate<String> nameFilter;
+    private final String description;
+    private double cost;
+    private Lookup lookup;
+    private List<IndexEntry> entries;
+    private List<String> names;
+
+    private QueryPlan(AccessPath accessPath, List<EClass> eClasses, List<String> values, Predicate<String> nameFilter, String description) {
+        this.accessPath = accessPath;
+        this.eClasses = eClasses;
+        this.values = values;
+        this.nameFilter = nameFilter;
+        this.description = description;
+    }
+
+    public static QueryPlan id(String id) {
+        QueryPlan plan = new QueryPlan(AccessPath.ID, Collections.emptyList(), Collections.singletonList(id), null, "ID(" + id + ")");
+        plan.cost = 1;
+        return plan;
+    }
+
+    public static QueryPlan name(List<EClass> eClasses, List<String> names) {
+        QueryPlan plan = new QueryPlan(AccessPath.NAME, eClasses, names, null, "NAME(" + classNames(eClasses) + ", " + names.size() + " value(s))");
+        plan.cost = eClasses.size() * names.size() * (QueryPlanner.LOAD_COST + QueryPlanner.INDEX_ENTRY_COST);
+        return plan;
+    }
+
+    // costs of the plans below are estimated from entry counts, the entries are read only by ids()
+    public static QueryPlan nameFilter(List<EClass> eClasses, Predicate<String> nameFilter, String filter, double selectivity, long count) {
+        QueryPlan plan = new QueryPlan(AccessPath.NAME_FILTER, eClasses, Collections.emptyList(), nameFilter, "NAME_FILTER(" + classNames(eClasses) + ", " + filter + ")");
+        plan.cost = count * (QueryPlanner.INDEX_ENTRY_COST + selectivity * QueryPlanner.LOAD_COST);
+        return plan;
+    }
+
+    public static QueryPlan eClass(List<EClass> eClasses, long count) {
+        QueryPlan plan = new QueryPlan(AccessPath.ECLASS, eClasses, Collections.emptyList(), null, "ECLASS(" + classNames(eClasses) + ")");
+        plan.cost = count * (QueryPlanner.INDEX_ENTRY_COST + QueryPlanner.LOAD_COST);
+        return plan;
+    }
+
+    public static QueryPlan attribute(AttributeIndex index, Lookup lookup, double entries, double ids, String filter) {
+        QueryPlan plan = new QueryPlan(AccessPath.ATTRIBUTE, Collections.singletonList(index.getEClass()), Collections.emptyList(), null, "ATTRIBUTE(" + index.getName() + ", " + filter + ")");
+        plan.lookup = lookup;
+        plan.cost = entries * QueryPlanner.INDEX_ENTRY_COST + ids * QueryPlanner.LOAD_COST;
+        return plan;
+    }
+
+    public static QueryPlan text(List<String> indexNames, Lookup lookup, double postings, double ids, Collection<String> terms) {
+        QueryPlan plan = new QueryPlan(AccessPath.TEXT, Collections.emptyList(), Collections.emptyList(), null, "TEXT(" + String.join("|", indexNames) + ", " + terms.size() + " term(s))");
+        plan.lookup = lookup;
+        plan.cost = postings * QueryPlanner.INDEX_ENTRY_COST + ids * QueryPlanner.LOAD_COST;
+        return plan;
+    }
+
+    public static QueryPlan fullScan() {
+        QueryPlan plan = new QueryPlan(AccessPath.FULL_SCAN, Collections.emptyList(), Collections.emptyList(), null, "FULL_SCAN");
+        plan.cost = Double.POSITIVE_INFINITY;
+        return plan;
+    }
+
+    public List<EntityId> findIds(Transaction tx) throws IOException {
+        try (Stream<EntityId> ids = ids(tx)) {
+            return ids.collect(Collectors.toList());
+        }
+    }
+
+    public Stream<EntityId> ids(Transaction tx) throws IOException {
+        Database database = tx.getDatabase();
+        switch (accessPath) {
+            case ID:
+                EntityId entityId = new EntityId(values.get(0), 0);
+                return tx.isResourceExists(entityId) ? Stream.of(entityId) : Stream.empty();
+            case NAME:
+                return eClasses.stream()
+                        .flatMap(eClass -> values.stream().flatMap(name -> {
+                            try {
+                                return database.findEClassIndexEntries(eClass, name, tx).stream();
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }))
+                        .map(ie -> new String(ie.getContent()))
+                        .distinct()
+                        .map(id -> new EntityId(id, 0));
+            case ATTRIBUTE:
+            case TEXT:
+                return lookup.find(tx).stream().map(id -> new EntityId(id, 0));
+            case NAME_FILTER:
+            case ECLASS:
+                List<IndexEntry> ieList = getEntries(tx);
+                return IntStream.range(0, ieList.size())
+                        .filter(i -> nameFilter == null || nameFilter.test(names.get(i)))
+                        .mapToObj(i -> new EntityId(new String(ieList.get(i).getContent()), 0));
+            default:
+                return tx.stream();
+        }
+    }
+
+    private List<IndexEntry> getEntries(Transaction tx) throws IOException {
+        if (entries == null) {
+            entries = new ArrayList<>();
+            names = new ArrayList<>();
+            for (EClass eClass: eClasses) {
+                String[] prefix = {eClass.getEPackage().getNsURI(), eClass.getName()};
+                for (IndexEntry ie: tx.getDatabase().findEClassIndexEntries(eClass, null, tx)) {
+                    entries.add(ie);
+                    names.add(getName(prefix, ie.getPath()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    static String getName(String[] prefix, String[] path) {
+        // a file based index splits nsURI and name on '/', so the prefix is matched in both forms
+        String joined = String.join("/", path);
+        String exact = String.join("/", prefix) + "/";
+        if (joined.startsWith(exact)) {
+            return joined.substring(exact.length());
+        }
+        StringJoiner normalized = new StringJoiner("/", "", "/");
+        for (String element: prefix) {
+            for (String name: element.split("/")) {
+                if (name.length() > 0) {
+                    normalized.add(name);
+                }
+            }
+        }
+        return joined.startsWith(normalized.toString()) ? joined.substring(normalized.toString().length()) : joined;
+    }
+
+    private static String classNames(List<EClass> eClasses) {
+        StringJoiner joiner = new StringJoiner("|");
+        for (EClass eClass: eClasses) {
+            joiner.add(eClass.getName());
+        }
+        return joiner.toString();
+    }
+
+    public AccessPath getAccessPath() {
+        return accessPath;
+    }
+
+    public List<EClass> getEClasses() {
+        return eClasses;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    void updateCost(long idsLoaded) {
+        if (accessPath == AccessPath.FULL_SCAN) {
+            cost = idsLoaded * QueryPlanner.LOAD_COST;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
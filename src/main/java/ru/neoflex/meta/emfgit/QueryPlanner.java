@@ -0,0 +1,341 @@
+package ru.neoflex.meta.emfgit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+public class QueryPlanner {
+    public static final double LOAD_COST = 1.0;
+    public static final double INDEX_ENTRY_COST = 0.01;
+    public static final double PREFIX_SELECTIVITY = 0.1;
+    public static final double FILTER_SELECTIVITY = 0.5;
+    private static final String REGEX_META = "\\[](){}.*+?^$|";
+
+    private final Database database;
+
+    public QueryPlanner(Database database) {
+        this.database = database;
+    }
+
+    public QueryPlan plan(ObjectNode selector, Transaction tx) throws IOException {
+        JsonNode contents = selector.get("contents");
+        if (contents instanceof ObjectNode && contents.has("$text")) {
+            // $text is answered by text indexes only, so it overrides any cheaper access path
+            return planText(contents, tx);
+        }
+        if (selector.has("id")) {
+            return QueryPlan.id(selector.get("id").asText());
+        }
+        List<QueryPlan> candidates = new ArrayList<>();
+        if (contents instanceof ObjectNode) {
+            EClass eClass = getEClass(contents, tx);
+            if (eClass != null) {
+                addAttributePlans(eClass, contents, candidates, tx);
+            }
+            if (eClass != null && isIndexed(eClass)) {
+                List<EClass> eClasses = database.getConcreteDescendants(eClass);
+                EStructuralFeature nameSF = database.getQNameFeature(eClass);
+                JsonNode nameNode = contents.get(nameSF.getName());
+                List<QueryPlan> namePlans = nameNode == null ? Collections.emptyList() : getNamePlans(eClasses, nameNode);
+                candidates.addAll(namePlans);
+                // a NAME plan reads one entry per value, scanning all entries of the classes can't be cheaper
+                if (namePlans.isEmpty()) {
+                    long count = countEntries(eClasses, tx);
+                    QueryPlan nameFilterPlan = nameNode == null ? null : getNameFilterPlan(eClasses, nameNode, count);
+                    if (nameFilterPlan != null) {
+                        candidates.add(nameFilterPlan);
+                    }
+                    candidates.add(QueryPlan.eClass(eClasses, count));
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return QueryPlan.fullScan();
+        }
+        return Collections.min(candidates, Comparator.comparingDouble(QueryPlan::getCost));
+    }
+
+    private EClass getEClass(JsonNode contents, Transaction tx) {
+        JsonNode classURI = contents.get("eClass");
+        if (classURI == null) {
+            return null;
+        }
+        EObject eObject = database.createResourceSet(tx).getEObject(URI.createURI(classURI.asText()), false);
+        return eObject instanceof EClass ? (EClass) eObject : null;
+    }
+
+    private boolean isIndexed(EClass eClass) {
+        // only classes with a qualified name are in type_name
+        if (database.getQNameFeature(eClass) == null) {
+            return false;
+        }
+        for (EClass descendant: database.getConcreteDescendants(eClass)) {
+            if (database.getQNameFeature(descendant) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long countEntries(List<EClass> eClasses, Transaction tx) throws IOException {
+        long count = 0;
+        for (EClass eClass: eClasses) {
+            count += database.countByIndex(tx, Database.TYPE_NAME_IDX, eClass.getEPackage().getNsURI(), eClass.getName());
+        }
+        return count;
+    }
+
+    private List<QueryPlan> getNamePlans(List<EClass> eClasses, JsonNode nameNode) {
+        List<QueryPlan> plans = new ArrayList<>();
+        if (!nameNode.isObject()) {
+            if (!nameNode.isNull()) {
+                plans.add(QueryPlan.name(eClasses, Collections.singletonList(nameNode.asText())));
+            }
+            return plans;
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> it = nameNode.fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> field = it.next();
+            String op = field.getKey();
+            JsonNode value = field.getValue();
+            if ("$eq".equals(op) && !value.isContainerNode()) {
+                plans.add(QueryPlan.name(eClasses, Collections.singletonList(value.asText())));
+            }
+            else if ("$in".equals(op) && value.isArray()) {
+                List<String> values = new ArrayList<>();
+                for (JsonNode node: value) {
+                    values.add(node.asText());
+                }
+                plans.add(QueryPlan.name(eClasses, values));
+            }
+        }
+        return plans;
+    }
+
+    private QueryPlan getNameFilterPlan(List<EClass> eClasses, JsonNode nameNode, long count) {
+        if (!nameNode.isObject()) {
+            return null;
+        }
+        List<Predicate<String>> filters = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        double selectivity = 1.0;
+        for (Iterator<Map.Entry<String, JsonNode>> it = nameNode.fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> field = it.next();
+            String op = field.getKey();
+            JsonNode value = field.getValue();
+            if ("$regex".equals(op) && value.isTextual()) {
+                Pattern pattern = Pattern.compile(value.asText());
+                String prefix = literalPrefix(value.asText());
+                filters.add(name -> name.startsWith(prefix) && pattern.matcher(name).matches());
+                descriptions.add(prefix.length() > 0 ? "prefix '" + prefix + "'" : "regex");
+                selectivity = Math.min(selectivity, prefix.length() > 0 ? PREFIX_SELECTIVITY : FILTER_SELECTIVITY);
+            }
+            else if (isRangeOp(op) && value.isTextual()) {
+                String bound = value.asText();
+                filters.add(name -> matchRange(op, name.compareTo(bound)));
+                descriptions.add(op + " '" + bound + "'");
+                selectivity = Math.min(selectivity, FILTER_SELECTIVITY);
+            }
+        }
+        if (filters.isEmpty()) {
+            return null;
+        }
+        Predicate<String> filter = filters.stream().reduce(Predicate::and).get();
+        return QueryPlan.nameFilter(eClasses, filter, String.join(" and ", descriptions), selectivity, count);
+    }
+
+    private void addAttributePlans(EClass eClass, JsonNode contents, List<QueryPlan> candidates, Transaction tx) throws IOException {
+        for (Index index: database.getIndexes().values()) {
+            if (index instanceof AttributeIndex && ((AttributeIndex) index).getEClass().isSuperTypeOf(eClass)) {
+                QueryPlan plan = planAttributeIndex((AttributeIndex) index, contents, tx);
+                if (plan != null) {
+                    candidates.add(plan);
+                }
+            }
+        }
+    }
+
+    private QueryPlan planAttributeIndex(AttributeIndex index, JsonNode contents, Transaction tx) throws IOException {
+        // equality on leading attributes gives key prefixes, a range on the next one filters the key after them;
+        // bounds are inclusive, the exact predicate is checked on the loaded resources
+        List<List<String>> prefixes = Collections.singletonList(Collections.emptyList());
+        List<String> descriptions = new ArrayList<>();
+        String lower = null;
+        String upper = null;
+        try {
+            for (EAttribute attribute: index.getAttributes()) {
+                JsonNode node = contents.get(attribute.getName());
+                List<String> keys = node == null ? null : equalityKeys(attribute, node);
+                if (keys != null) {
+                    List<List<String>> extended = new ArrayList<>();
+                    for (List<String> prefix: prefixes) {
+                        for (String key: keys) {
+                            List<String> path = new ArrayList<>(prefix);
+                            path.add(key);
+                            extended.add(path);
+                        }
+                    }
+                    prefixes = extended;
+                    descriptions.add(attribute.getName() + (keys.size() > 1 ? " in " + keys.size() + " value(s)" : " ="));
+                    continue;
+                }
+                if (node != null && node.isObject()) {
+                    for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext();) {
+                        Map.Entry<String, JsonNode> field = it.next();
+                        if (isRangeOp(field.getKey())) {
+                            String key = AttributeIndex.encodeKey(AttributeIndex.toValue(attribute, field.getValue()));
+                            if (field.getKey().startsWith("$g")) {
+                                lower = lower == null || key.compareTo(lower) > 0 ? key : lower;
+                            }
+                            else {
+                                upper = upper == null || key.compareTo(upper) < 0 ? key : upper;
+                            }
+                            descriptions.add(attribute.getName() + " " + field.getKey());
+                        }
+                    }
+                }
+                break;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (descriptions.isEmpty()) {
+            return null;
+        }
+        long entries = 0;
+        for (List<String> prefix: prefixes) {
+            entries += database.countByIndex(tx, index.getName(), prefix.toArray(new String[0]));
+        }
+        double ids = lower != null || upper != null ? entries * FILTER_SELECTIVITY : entries;
+        List<List<String>> paths = prefixes;
+        String from = lower;
+        String to = upper;
+        return QueryPlan.attribute(index, t -> findAttributeIds(index, paths, from, to, t), entries, ids, String.join(" and ", descriptions));
+    }
+
+    private List<String> findAttributeIds(AttributeIndex index, List<List<String>> prefixes, String lower, String upper, Transaction tx) throws IOException {
+        Set<String> ids = new LinkedHashSet<>();
+        for (List<String> prefix: prefixes) {
+            for (IndexEntry entry: database.findByIndex(tx, index.getName(), prefix.toArray(new String[0]))) {
+                if (lower != null || upper != null) {
+                    String key = entry.getPath()[prefix.size()];
+                    if (lower != null && key.compareTo(lower) < 0 || upper != null && key.compareTo(upper) > 0) {
+                        continue;
+                    }
+                }
+                ids.add(new String(entry.getContent(), StandardCharsets.UTF_8));
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private QueryPlan planText(JsonNode contents, Transaction tx) throws IOException {
+        Set<String> terms = TextIndex.tokenize(contents.get("$text").asText());
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("No terms in $text: " + contents.get("$text"));
+        }
+        EClass eClass = getEClass(contents, tx);
+        List<TextIndex> indexes = new ArrayList<>();
+        for (Index index: database.getIndexes().values()) {
+            if (index instanceof TextIndex) {
+                EClass indexed = ((TextIndex) index).getEClass();
+                if (eClass == null || indexed.isSuperTypeOf(eClass) || eClass.isSuperTypeOf(indexed)) {
+                    indexes.add((TextIndex) index);
+                }
+            }
+        }
+        if (indexes.isEmpty()) {
+            throw new IllegalArgumentException("No text index for $text search" + (eClass != null ? " in " + eClass.getName() : ""));
+        }
+        long postings = 0;
+        long ids = Long.MAX_VALUE;
+        for (String term: terms) {
+            long posting = 0;
+            for (TextIndex index: indexes) {
+                posting += database.countByIndex(tx, index.getName(), term);
+            }
+            postings += posting;
+            ids = Math.min(ids, posting);
+        }
+        List<String> names = new ArrayList<>();
+        for (TextIndex index: indexes) {
+            names.add(index.getName());
+        }
+        return QueryPlan.text(names, t -> findTextIds(indexes, terms, t), postings, ids, terms);
+    }
+
+    private static List<String> findTextIds(List<TextIndex> indexes, Set<String> terms, Transaction tx) throws IOException {
+        List<Set<String>> postings = new ArrayList<>();
+        for (String term: terms) {
+            Set<String> posting = new LinkedHashSet<>();
+            for (TextIndex index: indexes) {
+                posting.addAll(index.findIds(tx, term));
+            }
+            postings.add(posting);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        Set<String> ids = new LinkedHashSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !ids.isEmpty(); ++i) {
+            ids.retainAll(postings.get(i));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static List<String> equalityKeys(EAttribute attribute, JsonNode node) {
+        if (!node.isContainerNode()) {
+            return node.isNull() ? null : Collections.singletonList(AttributeIndex.encodeKey(AttributeIndex.toValue(attribute, node)));
+        }
+        JsonNode eq = node.get("$eq");
+        if (eq != null && !eq.isContainerNode() && !eq.isNull()) {
+            return Collections.singletonList(AttributeIndex.encodeKey(AttributeIndex.toValue(attribute, eq)));
+        }
+        JsonNode in = node.get("$in");
+        if (in != null && in.isArray() && in.size() > 0) {
+            List<String> keys = new ArrayList<>();
+            for (JsonNode value: in) {
+                keys.add(AttributeIndex.encodeKey(AttributeIndex.toValue(attribute, value)));
+            }
+            return keys;
+        }
+        return null;
+    }
+
+    private static boolean isRangeOp(String op) {
+        return "$lt".equals(op) || "$lte".equals(op) || "$gt".equals(op) || "$gte".equals(op);
+    }
+
+    private static boolean matchRange(String op, int cmp) {
+        switch (op) {
+            case "$lt": return cmp < 0;
+            case "$lte": return cmp <= 0;
+            case "$gt": return cmp > 0;
+            default: return cmp >= 0;
+        }
+    }
+
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        for (; i < regex.length() && REGEX_META.indexOf(regex.charAt(i)) < 0; ++i) {
+            prefix.append(regex.charAt(i));
+        }
+        // a quantifier makes the last literal optional
+        if (i < regex.length() && "*?{".indexOf(regex.charAt(i)) >= 0 && prefix.length() > 0) {
+            prefix.setLength(prefix.length() - 1);
+        }
+        return prefix.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.InternalEObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+public class ResourceCache {
+    public static final long DEFAULT_MAX_WEIGHT = 32L * 1024 * 1024;
+    private static final int WEIGHT_FACTOR = 4;
+
+    private final LinkedHashMap<ObjectId, CachedResource> resources = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long maxWeight;
+    private long weight = 0;
+
+    public ResourceCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public ResourceCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    public static ObjectId getBlobId(byte[] content) {
+        return new ObjectInserter.Formatter().idFor(OBJ_BLOB, content);
+    }
+
+    public boolean load(ObjectId blobId, Resource resource) {
+        CachedResource cached;
+        synchronized (this) {
+            cached = resources.get(blobId);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        synchronized (cached) {
+            copy(cached.contents, cached.ids, resource);
+        }
+        return true;
+    }
+
+    public void put(ObjectId blobId, Resource resource, int contentLength) {
+        long resourceWeight = (long) contentLength * WEIGHT_FACTOR;
+        if (resourceWeight > maxWeight) {
+            return;
+        }
+        Map<EObject, String> ids = new HashMap<>();
+        EcoreUtil.Copier copier = new ProxyCopier();
+        List<EObject> contents = new ArrayList<>(copier.copyAll(resource.getContents()));
+        copier.copyReferences();
+        if (resource instanceof XMLResource) {
+            for (Map.Entry<EObject, EObject> entry: copier.entrySet()) {
+                String id = ((XMLResource) resource).getID(entry.getKey());
+                if (id != null) {
+                    ids.put(entry.getValue(), id);
+                }
+            }
+        }
+        synchronized (this) {
+            CachedResource previous = resources.put(blobId.copy(), new CachedResource(contents, ids, resourceWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += resourceWeight;
+            evict();
+        }
+    }
+
+    private static void copy(List<EObject> contents, Map<EObject, String> ids, Resource resource) {
+        EcoreUtil.Copier copier = new ProxyCopier();
+        Collection<EObject> copies = copier.copyAll(contents);
+        copier.copyReferences();
+        if (resource instanceof XMLResource) {
+            for (Map.Entry<EObject, String> entry: ids.entrySet()) {
+                ((XMLResource) resource).setID(copier.get(entry.getKey()), entry.getValue());
+            }
+        }
+        resource.getContents().addAll(copies);
+    }
+
+    private void evict() {
+        Iterator<CachedResource> it = resources.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        resources.clear();
+        weight = 0;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int getSize() {
+        return resources.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    // references to proxies outside the copied contents get proxies of their own, so no copy shares them
+    private static class ProxyCopier extends EcoreUtil.Copier {
+        private final Map<EObject, EObject> proxies = new HashMap<>();
+
+        private ProxyCopier() {
+            super(false);
+        }
+
+        @Override
+        public EObject get(Object key) {
+            EObject ret = super.get(key);
+            if (ret == null && key instanceof EObject && ((EObject) key).eIsProxy()) {
+                ret = proxies.computeIfAbsent((EObject) key, proxy -> {
+                    EObject copy = EcoreUtil.create(proxy.eClass());
+                    ((InternalEObject) copy).eSetProxyURI(((InternalEObject) proxy).eProxyURI());
+                    return copy;
+                });
+            }
+            return ret;
+        }
+    }
+
+    private static class CachedResource {
+        private final List<EObject> contents;
+        private final Map<EObject, String> ids;
+        private final long weight;
+
+        private CachedResource(List<EObject> contents, Map<EObject, String> ids, long weight) {
+            this.contents = contents;
+            this.ids = ids;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.resource.Resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+public interface ResourceCodec {
+    String getName();
+    boolean canDecode(byte[] content);
+    void encode(Resource resource, OutputStream os, Map<?, ?> options) throws IOException;
+    void decode(byte[] content, Resource resource, Map<?, ?> options) throws IOException;
+}
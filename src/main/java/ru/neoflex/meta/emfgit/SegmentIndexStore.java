@@ -0,0 +1,340 @@
+package ru.neoflex.meta.emfgit;
+
+import com.beijunyi.parallelgit.filesystem.GitPath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static ru.neoflex.meta.emfgit.Database.IDX_PATH;
+
+/*
+ * Keeps every index as a fixed set of shard files db/idx/<index>/<shard>.seg. The shard is chosen
+ * by the first shard depth path elements of the index, so a lookup by that many elements reads one blob.
+ * The depth follows the leading key of the index: nsURI, class and name for type_name (one EPackage
+ * would otherwise be a single shard), the referenced id for ref, and by default the leading element,
+ * the attribute value or term of attribute and text indexes. Lookups by fewer elements read every shard.
+ * Changing the depth or the count of an existing index needs a reindex.
+ * A shard is a single sorted segment:
+ *   magic, version, count, offsets[count], entries (keyLength, key, contentLength, content)
+ * where a key is the utf-8 path elements joined by '\0'. Updates rewrite the touched shards only.
+ */
+public class SegmentIndexStore implements IndexStore {
+    public static final int DEFAULT_SHARD_DEPTH = 1;
+    public static final int TYPE_NAME_SHARD_DEPTH = 3;
+    public static final int REF_SHARD_DEPTH = 2;
+    public static final int DEFAULT_SHARD_COUNT = 256;
+    public static final String SEGMENT_EXT = ".seg";
+    private static final byte[] MAGIC = {'E', 'G', 'I', 'S'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+    private static final Comparator<byte[]> KEY_ORDER = SegmentIndexStore::compareKeys;
+
+    private final int shardDepth;
+    private final int shardCount;
+    private final Map<String, Integer> shardDepths = new ConcurrentHashMap<>();
+
+    // shardDepth is used by the indexes without a depth of their own
+    public SegmentIndexStore(int shardDepth, int shardCount) {
+        if (shardDepth < 1 || shardCount < 1) {
+            throw new IllegalArgumentException("Invalid shard depth or count: " + shardDepth + ", " + shardCount);
+        }
+        this.shardDepth = shardDepth;
+        this.shardCount = shardCount;
+        setShardDepth(Database.TYPE_NAME_IDX, TYPE_NAME_SHARD_DEPTH);
+        setShardDepth(Database.REF_IDX, REF_SHARD_DEPTH);
+    }
+
+    public SegmentIndexStore() {
+        this(DEFAULT_SHARD_DEPTH, DEFAULT_SHARD_COUNT);
+    }
+
+    @Override
+    public List<IndexEntry> find(Transaction tx, String indexName, String... path) throws IOException {
+        byte[] prefix = encodeKey(path);
+        List<IndexEntry> result = new ArrayList<>();
+        for (String segmentPath: getSegmentPaths(tx, indexName, path)) {
+            Segment segment = readSegment(tx, segmentPath);
+            if (segment != null) {
+                segment.find(prefix, result);
+            }
+        }
+        return result;
+    }
+
+    // counted by binary search in the shards, no entry is decoded
+    @Override
+    public int count(Transaction tx, String indexName, String... path) throws IOException {
+        byte[] prefix = encodeKey(path);
+        int count = 0;
+        for (String segmentPath: getSegmentPaths(tx, indexName, path)) {
+            Segment segment = readSegment(tx, segmentPath);
+            if (segment != null) {
+                count += segment.count(prefix);
+            }
+        }
+        return count;
+    }
+
+    // every shard is read once for all of the paths that fall into it
+    @Override
+    public Map<List<String>, IndexEntry> get(Transaction tx, String indexName, Collection<String[]> paths) throws IOException {
+        Map<String, List<String[]>> pathsByShard = new HashMap<>();
+        for (String[] path: paths) {
+            pathsByShard.computeIfAbsent(getSegmentPath(indexName, path), p -> new ArrayList<>()).add(path);
+        }
+        Map<List<String>, IndexEntry> result = new HashMap<>();
+        for (Map.Entry<String, List<String[]>> shard: pathsByShard.entrySet()) {
+            Segment segment = readSegment(tx, shard.getKey());
+            if (segment == null) {
+                continue;
+            }
+            for (String[] path: shard.getValue()) {
+                byte[] key = encodeKey(path);
+                int i = segment.lowerBound(key);
+                if (i < segment.size() && compareKeys(segment.key(i), key) == 0) {
+                    IndexEntry entry = new IndexEntry();
+                    entry.setPath(path);
+                    entry.setContent(segment.content(i));
+                    result.put(IndexSnapshot.normalize(path), entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void update(Transaction tx, String indexName, Collection<IndexEntry> toDelete, Collection<IndexEntry> toPut) throws IOException {
+        Map<String, Set<byte[]>> deletesByShard = new HashMap<>();
+        for (IndexEntry entry: toDelete) {
+            deletesByShard.computeIfAbsent(getSegmentPath(indexName, entry.getPath()), p -> new TreeSet<>(KEY_ORDER))
+                    .add(encodeKey(entry.getPath()));
+        }
+        Map<String, Map<byte[], byte[]>> putsByShard = new HashMap<>();
+        for (IndexEntry entry: toPut) {
+            putsByShard.computeIfAbsent(getSegmentPath(indexName, entry.getPath()), p -> new TreeMap<>(KEY_ORDER))
+                    .put(encodeKey(entry.getPath()), entry.getContent());
+        }
+        Set<String> shards = new HashSet<>(deletesByShard.keySet());
+        shards.addAll(putsByShard.keySet());
+        for (String shard: shards) {
+            Set<byte[]> deletes = deletesByShard.getOrDefault(shard, Collections.emptySet());
+            Map<byte[], byte[]> puts = putsByShard.getOrDefault(shard, Collections.emptyMap());
+            Segment segment = readSegment(tx, shard);
+            TreeMap<byte[], byte[]> entries = new TreeMap<>(KEY_ORDER);
+            if (segment != null) {
+                segment.readAll(entries);
+            }
+            for (byte[] key: deletes) {
+                if (!puts.containsKey(key) && entries.remove(key) == null) {
+                    throw new IOException("Index entry " + indexName + "/" + String.join("/", decodeKey(key)) + " not found");
+                }
+            }
+            for (Map.Entry<byte[], byte[]> put: puts.entrySet()) {
+                if (entries.put(put.getKey(), put.getValue()) != null && !deletes.contains(put.getKey())) {
+                    throw new IOException("Index entry " + indexName + "/" + String.join("/", decodeKey(put.getKey())) + " already exists");
+                }
+            }
+            GitPath segmentPath = tx.getFileSystem().getPath("/", shard);
+            if (entries.isEmpty()) {
+                Files.deleteIfExists(segmentPath);
+            }
+            else {
+                Files.createDirectories(segmentPath.getParent());
+                Files.write(segmentPath, encodeSegment(entries));
+            }
+        }
+    }
+
+    public int getShardDepth() {
+        return shardDepth;
+    }
+
+    public int getShardDepth(String indexName) {
+        return shardDepths.getOrDefault(indexName, shardDepth);
+    }
+
+    public void setShardDepth(String indexName, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Invalid shard depth of " + indexName + ": " + depth);
+        }
+        shardDepths.put(indexName, depth);
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    private String getSegmentPath(String indexName, String[] path) {
+        return IDX_PATH + "/" + indexName + "/" + getShardName(indexName, path);
+    }
+
+    private String getShardName(String indexName, String[] path) {
+        int depth = Math.min(path.length, getShardDepth(indexName));
+        int shard = Math.floorMod(Arrays.hashCode(Arrays.copyOf(path, depth)), shardCount);
+        return Integer.toHexString(shard) + SEGMENT_EXT;
+    }
+
+    // shards are read through the transaction, so a snapshot reads them from its trees
+    private List<String> getSegmentPaths(Transaction tx, String indexName, String[] path) throws IOException {
+        if (path.length >= getShardDepth(indexName)) {
+            return Collections.singletonList(getSegmentPath(indexName, path));
+        }
+        String indexPath = IDX_PATH + "/" + indexName;
+        return tx.list(indexPath).stream()
+                .filter(name -> name.endsWith(SEGMENT_EXT))
+                .map(name -> indexPath + "/" + name)
+                .collect(Collectors.toList());
+    }
+
+    private static Segment readSegment(Transaction tx, String segmentPath) throws IOException {
+        byte[] data = tx.readFile(segmentPath);
+        return data == null ? null : new Segment(data, segmentPath);
+    }
+
+    static byte[] encodeSegment(SortedMap<byte[], byte[]> entries) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(entries.size());
+        int offset = HEADER_SIZE + 4 * entries.size();
+        for (Map.Entry<byte[], byte[]> entry: entries.entrySet()) {
+            dos.writeInt(offset);
+            offset += 8 + entry.getKey().length + entry.getValue().length;
+        }
+        for (Map.Entry<byte[], byte[]> entry: entries.entrySet()) {
+            dos.writeInt(entry.getKey().length);
+            dos.write(entry.getKey());
+            dos.writeInt(entry.getValue().length);
+            dos.write(entry.getValue());
+        }
+        dos.flush();
+        return os.toByteArray();
+    }
+
+    static byte[] encodeKey(String[] path) {
+        return String.join("\0", path).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String[] decodeKey(byte[] key) {
+        return new String(key, StandardCharsets.UTF_8).split("\0", -1);
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        return compareKeys(a, 0, a.length, b);
+    }
+
+    private static int compareKeys(byte[] a, int from, int length, byte[] b) {
+        int n = Math.min(length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int cmp = (a[from + i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - b.length;
+    }
+
+    static class Segment {
+        private final ByteBuffer buffer;
+        private final int count;
+
+        Segment(byte[] data, String path) throws IOException {
+            this.buffer = ByteBuffer.wrap(data);
+            for (int i = 0; i < MAGIC.length; ++i) {
+                if (data.length < HEADER_SIZE || data[i] != MAGIC[i]) {
+                    throw new IOException("Not an index segment: " + path);
+                }
+            }
+            if (data[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported index segment version " + data[MAGIC.length] + ": " + path);
+            }
+            this.count = buffer.getInt(MAGIC.length + 1);
+        }
+
+        int size() {
+            return count;
+        }
+
+        private int offset(int i) {
+            return buffer.getInt(HEADER_SIZE + 4 * i);
+        }
+
+        private int keyLength(int i) {
+            return buffer.getInt(offset(i));
+        }
+
+        byte[] key(int i) {
+            return Arrays.copyOfRange(buffer.array(), offset(i) + 4, offset(i) + 4 + keyLength(i));
+        }
+
+        byte[] content(int i) {
+            int contentOffset = offset(i) + 4 + keyLength(i);
+            int length = buffer.getInt(contentOffset);
+            return Arrays.copyOfRange(buffer.array(), contentOffset + 4, contentOffset + 4 + length);
+        }
+
+        private int compare(int i, byte[] key) {
+            return compareKeys(buffer.array(), offset(i) + 4, keyLength(i), key);
+        }
+
+        int lowerBound(byte[] key) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, key) < 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int count(byte[] prefix) {
+            if (prefix.length == 0) {
+                return count;
+            }
+            // keys under prefix are prefix itself and prefix + '\0' + ..., all of them sort before prefix + '\1'
+            byte[] end = Arrays.copyOf(prefix, prefix.length + 1);
+            end[prefix.length] = 1;
+            return lowerBound(end) - lowerBound(prefix);
+        }
+
+        void find(byte[] prefix, List<IndexEntry> result) {
+            byte[] data = buffer.array();
+            for (int i = prefix.length == 0 ? 0 : lowerBound(prefix); i < count; ++i) {
+                int keyOffset = offset(i) + 4;
+                int keyLength = keyLength(i);
+                if (prefix.length > 0) {
+                    // keys matching prefix + '\0' sort right after the prefix itself
+                    if (keyLength < prefix.length || compareKeys(data, keyOffset, prefix.length, prefix) != 0) {
+                        break;
+                    }
+                    if (keyLength > prefix.length && data[keyOffset + prefix.length] != 0) {
+                        break;
+                    }
+                }
+                IndexEntry entry = new IndexEntry();
+                entry.setPath(decodeKey(key(i)));
+                entry.setContent(content(i));
+                result.add(entry);
+            }
+        }
+
+        void readAll(Map<byte[], byte[]> entries) {
+            for (int i = 0; i < count; ++i) {
+                entries.put(key(i), content(i));
+            }
+        }
+    }
+}
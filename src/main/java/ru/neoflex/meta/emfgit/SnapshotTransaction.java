@@ -0,0 +1,233 @@
+package ru.neoflex.meta.emfgit;
+
+import com.beijunyi.parallelgit.filesystem.GfsObjectCache;
+import com.beijunyi.parallelgit.filesystem.Gfs;
+import com.beijunyi.parallelgit.filesystem.GitFileSystem;
+import com.beijunyi.parallelgit.utils.io.GitFileEntry;
+import com.beijunyi.parallelgit.utils.io.TreeSnapshot;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+import static ru.neoflex.meta.emfgit.Database.IDS_PATH;
+
+/*
+ * Read-only transaction pinned to a tree, usually the one of a commit. Entities, streams and index lookups
+ * (through getEntry/readFile/list) resolve paths directly over the immutable trees, read through the repository
+ * object cache, so opening one costs a commit lookup and takes no branch lock. A detached GitFileSystem on the
+ * tree is opened on first use of getFileSystem() only, for callers that need paths, e.g. class loaders.
+ * Writes through the transaction fail with IOException.
+ * Within the package a snapshot can also be taken of the current tree of a write transaction (see of()),
+ * to read that tree on other threads while the transaction goes on.
+ */
+public class SnapshotTransaction extends Transaction {
+    private final Repository repository;
+    private final GfsObjectCache cache;
+    private final RevCommit commit;
+    private final ObjectId tree;
+    private GitFileSystem gfs;
+
+    public SnapshotTransaction(Database database, String branch, RevCommit commit) {
+        this(database, branch, commit, commit.getTree());
+    }
+
+    private SnapshotTransaction(Database database, String branch, RevCommit commit, ObjectId tree) {
+        super(database, branch, LockType.READ, null);
+        this.repository = database.getRepository();
+        this.cache = database.getObjectCache();
+        this.commit = commit;
+        this.tree = tree.copy();
+    }
+
+    // the flushed tree of tx on top of its base commit, which is null for a branch without commits
+    static SnapshotTransaction of(Transaction tx) throws IOException {
+        GitFileSystem txGfs = tx.getFileSystem();
+        RevCommit base = txGfs.getStatusProvider().isInitialized() ? txGfs.getStatusProvider().commit() : null;
+        return new SnapshotTransaction(tx.getDatabase(), tx.getBranch(), base, txGfs.flush());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (gfs != null) {
+            gfs.close();
+        }
+    }
+
+    public RevCommit getCommit() {
+        return commit;
+    }
+
+    public ObjectId getTree() {
+        return tree;
+    }
+
+    @Override
+    public synchronized GitFileSystem getFileSystem() {
+        if (gfs == null) {
+            try {
+                GitFileSystem detached = commit != null ? Gfs.newFileSystem(commit, repository) : Gfs.newFileSystem(getBranch(), repository);
+                try {
+                    if (commit == null || !tree.equals(commit.getTree())) {
+                        detached.updateOrigin(tree);
+                        detached.reset();
+                    }
+                }
+                catch (IOException|RuntimeException e) {
+                    detached.close();
+                    throw e;
+                }
+                gfs = detached;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return gfs;
+    }
+
+    @Override
+    public void commit(String message, String author, String email) throws IOException {
+        throw new IOException("Can't commit snapshot transaction");
+    }
+
+    @Override
+    public RevCommit getLastCommit(EntityId entityId) throws IOException {
+        return getLastCommit(IDS_PATH + "/" + entityId.getId());
+    }
+
+    // the history is walked from the commit instead of the branch head
+    @Override
+    public RevCommit getLastCommit(String path) throws IOException {
+        if (commit == null) {
+            return null;
+        }
+        try (RevWalk revCommits = new RevWalk(repository)) {
+            revCommits.setTreeFilter(PathFilter.create(String.join("/", IndexSnapshot.normalize(path))));
+            revCommits.markStart(revCommits.parseCommit(commit));
+            return revCommits.next();
+        }
+    }
+
+    @Override
+    public Entity create(Entity entity) throws IOException {
+        throw new IOException("Snapshot transaction is read-only");
+    }
+
+    @Override
+    public Entity update(Entity entity) throws IOException {
+        throw new IOException("Snapshot transaction is read-only");
+    }
+
+    @Override
+    public void delete(EntityId entityId) throws IOException {
+        throw new IOException("Snapshot transaction is read-only");
+    }
+
+    @Override
+    public Entity load(EntityId entityId) throws IOException {
+        String path = IDS_PATH + "/" + entityId.getId();
+        GitFileEntry entry = getEntry(path);
+        if (entry.isMissing() || entry.isSubtree()) {
+            throw new IOException("Path not found: /" + path);
+        }
+        return new Entity(entityId.getId(), getRev(entry.getId()), readBlob(entry.getId()));
+    }
+
+    @Override
+    public boolean isResourceExists(EntityId entityId) {
+        try {
+            GitFileEntry entry = getEntry(IDS_PATH + "/" + entityId.getId());
+            return !entry.isMissing() && !entry.isSubtree();
+        }
+        catch (MissingObjectException e) {
+            return false;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Stream<EntityId> stream() throws IOException {
+        GitFileEntry idsEntry = getEntry(IDS_PATH);
+        if (!idsEntry.isSubtree()) {
+            return Stream.empty();
+        }
+        List<EntityId> ids = new ArrayList<>();
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(idsEntry.getId());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                ids.add(new EntityId(treeWalk.getPathString(), getRev(treeWalk.getObjectId(0))));
+            }
+        }
+        return ids.stream();
+    }
+
+    // the snapshot never changes its tree, so the entry is never null
+    @Override
+    GitFileEntry getEntry(String path) throws IOException {
+        GitFileEntry entry = GitFileEntry.newTreeEntry(tree);
+        for (String name: IndexSnapshot.normalize(path)) {
+            if (!entry.isSubtree()) {
+                return GitFileEntry.missingEntry();
+            }
+            entry = readTree(entry.getId()).getChild(name);
+        }
+        return entry;
+    }
+
+    @Override
+    byte[] readFile(String path) throws IOException {
+        GitFileEntry entry = getEntry(path);
+        return entry.isMissing() || entry.isSubtree() ? null : readBlob(entry.getId());
+    }
+
+    @Override
+    List<String> list(String path) throws IOException {
+        GitFileEntry entry = getEntry(path);
+        if (!entry.isSubtree()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(readTree(entry.getId()).getData().keySet());
+    }
+
+    private TreeSnapshot readTree(ObjectId id) throws IOException {
+        TreeSnapshot tree = cache.getTree(id);
+        if (tree == null) {
+            try (ObjectReader reader = repository.newObjectReader()) {
+                tree = TreeSnapshot.load(id, reader);
+            }
+            cache.putTree(tree);
+        }
+        return tree;
+    }
+
+    private byte[] readBlob(ObjectId id) throws IOException {
+        byte[] bytes = cache.getBlob(id);
+        if (bytes == null) {
+            try (ObjectReader reader = repository.newObjectReader()) {
+                ObjectLoader loader = reader.open(id, OBJ_BLOB);
+                bytes = loader.getCachedBytes(Integer.MAX_VALUE);
+                if (cache.isCacheableBlob(bytes.length)) {
+                    cache.putBlob(id, bytes);
+                }
+            }
+        }
+        return bytes;
+    }
+}
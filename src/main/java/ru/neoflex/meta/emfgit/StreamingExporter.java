@@ -0,0 +1,223 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.resource.Resource;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static ru.neoflex.meta.emfgit.Exporter.REFS;
+import static ru.neoflex.meta.emfgit.Exporter.XMI;
+
+/*
+ * Exports a branch from a single read transaction. Every entity is loaded once on the pool and each of its named
+ * roots is exported the way Exporter does it: a document without external references and a .refs document.
+ * At most maxInFlight entities are being processed or waiting to be written at a time.
+ * Exporter.unzip needs all .xmi entries before the .refs ones, so .refs documents are spooled to a temporary
+ * file and appended to the archive at the end.
+ */
+public class StreamingExporter {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final Exporter exporter;
+    private final Database database;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    public StreamingExporter(Exporter exporter) {
+        this.exporter = exporter;
+        this.database = exporter.database;
+    }
+
+    public void zipAll(String branch, OutputStream outputStream) throws Exception {
+        database.inTransaction(branch, Transaction.LockType.READ, tx -> {
+            zip(tx, outputStream);
+            return null;
+        });
+    }
+
+    public void exportAll(String branch, Path path) throws Exception {
+        database.inTransaction(branch, Transaction.LockType.READ, tx -> {
+            export(tx, path);
+            return null;
+        });
+    }
+
+    public void zip(Transaction tx, OutputStream outputStream) throws IOException {
+        Path spool = Files.createTempFile("emfgit", REFS);
+        try {
+            int[] refsCount = {0};
+            try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);) {
+                try (DataOutputStream refsOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)))) {
+                    export(tx, exported -> {
+                        putEntry(zipOutputStream, exported.id + XMI, exported.xmi);
+                        if (exported.refs != null) {
+                            refsOutput.writeUTF(exported.id + REFS);
+                            refsOutput.writeInt(exported.refs.length);
+                            refsOutput.write(exported.refs);
+                            ++refsCount[0];
+                        }
+                    });
+                }
+                try (DataInputStream refsInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+                    for (int i = 0; i < refsCount[0]; ++i) {
+                        String name = refsInput.readUTF();
+                        byte[] refs = new byte[refsInput.readInt()];
+                        refsInput.readFully(refs);
+                        putEntry(zipOutputStream, name, refs);
+                    }
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    public void export(Transaction tx, Path path) throws IOException {
+        export(tx, exported -> {
+            Path filePath = path.resolve(exported.id + XMI);
+            Files.createDirectories(filePath.getParent());
+            Files.write(filePath, exported.xmi);
+            if (exported.refs != null) {
+                Path refsPath = path.resolve(exported.id + REFS);
+                Files.write(refsPath, exported.refs);
+            }
+        });
+    }
+
+    private static void putEntry(ZipOutputStream zipOutputStream, String name, byte[] bytes) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(name);
+        zipOutputStream.putNextEntry(zipEntry);
+        zipOutputStream.write(bytes);
+        zipOutputStream.closeEntry();
+    }
+
+    private static class Exported {
+        final String id;
+        final byte[] xmi;
+        final byte[] refs;
+
+        Exported(String id, byte[] xmi, byte[] refs) {
+            this.id = id;
+            this.xmi = xmi;
+            this.refs = refs;
+        }
+    }
+
+    private interface Sink {
+        void accept(Exported exported) throws IOException;
+    }
+
+    // entities are exported on the pool, the sink is called on the calling thread in the order of the entities
+    private void export(Transaction tx, Sink sink) throws IOException {
+        ArrayDeque<ForkJoinTask<List<Exported>>> inFlight = new ArrayDeque<>();
+        try {
+            try (Stream<EntityId> stream = tx.stream()) {
+                Iterator<EntityId> iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    String id = iterator.next().getId();
+                    if (inFlight.size() >= maxInFlight) {
+                        write(inFlight.remove(), sink);
+                    }
+                    inFlight.add(pool.submit(() -> {
+                        try {
+                            return exportResource(id, tx);
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        catch (RuntimeException e) {
+                            throw e;
+                        }
+                        catch (Exception e) {
+                            throw new UncheckedIOException(new IOException(e));
+                        }
+                    }));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.remove(), sink);
+            }
+        }
+        finally {
+            for (ForkJoinTask<List<Exported>> task: inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private void write(ForkJoinTask<List<Exported>> task, Sink sink) throws IOException {
+        List<Exported> exported;
+        try {
+            exported = task.join();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (Exported e: exported) {
+            sink.accept(e);
+        }
+    }
+
+    // the loaded resource is private to this export, so roots are not copied: the .refs documents of all roots
+    // are built first, as unsetting a bidirectional reference changes the other root as well, then the
+    // external references are unset in place and each root is moved to a resource of its own and saved
+    private List<Exported> exportResource(String id, Transaction tx) throws Exception {
+        Resource resource = database.loadResource(id, tx);
+        List<EObject> roots = new ArrayList<>();
+        List<byte[]> refs = new ArrayList<>();
+        for (EObject eObject: resource.getContents()) {
+            EStructuralFeature nameAttribute = database.getQNameFeature(eObject.eClass());
+            if (nameAttribute != null) {
+                String name = (String) eObject.eGet(nameAttribute);
+                if (name != null && name.length() > 0) {
+                    roots.add(eObject);
+                    refs.add(exporter.exportExternalReferences(eObject));
+                }
+            }
+        }
+        for (EObject eObject: roots) {
+            exporter.unsetExternalReferences(eObject);
+        }
+        List<Exported> result = new ArrayList<>();
+        for (int i = 0; i < roots.size(); ++i) {
+            Resource rootResource = database.createResourceSet(null).createResource(resource.getURI());
+            rootResource.getContents().add(roots.get(i));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            rootResource.save(os, null);
+            result.add(new Exported(id, os.toByteArray(), refs.get(i)));
+        }
+        return result;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid number of entities in flight: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+}
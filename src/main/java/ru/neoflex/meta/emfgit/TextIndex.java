@@ -0,0 +1,112 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Inverted index over the words of the given attributes of eClass (and its subclasses) root objects.
+ * Each posting is an entry <term>/<resource id parts> with the resource id as content, so the
+ * posting list of a term is a single prefix lookup. Terms are the lower-cased runs of letters and digits.
+ */
+public class TextIndex implements Index {
+    private final Database database;
+    private final String name;
+    private final EClass eClass;
+    private final List<EAttribute> attributes;
+
+    public TextIndex(Database database, String name, EClass eClass, EAttribute... attributes) {
+        if (attributes.length == 0) {
+            throw new IllegalArgumentException("No attributes for index " + name);
+        }
+        for (EAttribute attribute: attributes) {
+            if (!eClass.getEAllAttributes().contains(attribute)) {
+                throw new IllegalArgumentException(String.format("Attribute %s not found in eClass %s", attribute.getName(), eClass.getName()));
+            }
+        }
+        this.database = database;
+        this.name = name;
+        this.eClass = eClass;
+        this.attributes = Collections.unmodifiableList(Arrays.asList(attributes));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public List<IndexEntry> getEntries(Resource resource, Transaction transaction) throws IOException {
+        Set<String> terms = new TreeSet<>();
+        for (EObject eObject: resource.getContents()) {
+            if (!eClass.isSuperTypeOf(eObject.eClass())) {
+                continue;
+            }
+            for (EAttribute attribute: attributes) {
+                Object value = eObject.eGet(attribute);
+                if (value instanceof Collection) {
+                    for (Object element: (Collection) value) {
+                        if (element != null) {
+                            terms.addAll(tokenize(element.toString()));
+                        }
+                    }
+                }
+                else if (value != null) {
+                    terms.addAll(tokenize(value.toString()));
+                }
+            }
+        }
+        List<IndexEntry> result = new ArrayList<>();
+        if (terms.isEmpty()) {
+            return result;
+        }
+        String id = database.getResourceId(resource);
+        for (String term: terms) {
+            List<String> path = new ArrayList<>();
+            path.add(term);
+            path.addAll(Arrays.asList(id.split("/")));
+            IndexEntry entry = new IndexEntry();
+            entry.setPath(path.toArray(new String[0]));
+            entry.setContent(id.getBytes(StandardCharsets.UTF_8));
+            result.add(entry);
+        }
+        return result;
+    }
+
+    public List<String> findIds(Transaction tx, String term) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (IndexEntry entry: database.findByIndex(tx, name, term)) {
+            ids.add(new String(entry.getContent(), StandardCharsets.UTF_8));
+        }
+        return ids;
+    }
+
+    public EClass getEClass() {
+        return eClass;
+    }
+
+    public List<EAttribute> getAttributes() {
+        return attributes;
+    }
+
+    public static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            }
+            else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+}
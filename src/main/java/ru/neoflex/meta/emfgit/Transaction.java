@@ -6,7 +6,11 @@ import com.beijunyi.parallelgit.filesystem.GitPath;
 import com.beijunyi.parallelgit.filesystem.commands.GfsCommit;
 import com.beijunyi.parallelgit.filesystem.io.DirectoryNode;
 import com.beijunyi.parallelgit.filesystem.io.Node;
+import com.beijunyi.parallelgit.utils.exceptions.RefUpdateLockFailureException;
+import com.beijunyi.parallelgit.utils.exceptions.RefUpdateRejectedException;
+import com.beijunyi.parallelgit.utils.io.GitFileEntry;
 import com.github.marschall.pathclassloader.PathClassLoader;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -15,12 +19,15 @@ import org.eclipse.jgit.treewalk.filter.PathFilter;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static ru.neoflex.meta.emfgit.Database.IDS_PATH;
 
@@ -30,6 +37,7 @@ public class Transaction implements Closeable {
     private GitFileSystem gfs;
     public enum LockType {READ, WRITE, EXCLUSIVE}
     private LockType lockType;
+    private ObjectId baseTree;
     private static final ThreadLocal<Transaction> tlTransaction = new ThreadLocal<>();
 
     public static void setCurrent(Transaction tx) {
@@ -44,27 +52,35 @@ public class Transaction implements Closeable {
         this.database = database;
         this.branch = branch;
         this.lockType = lockType;
-        if (lockType == LockType.EXCLUSIVE) {
-            database.getLock().writeLock().lock();
+        database.getLockManager().lock(branch, lockType);
+        try {
+            this.gfs = Gfs.newFileSystem(branch, database.getRepository());
         }
-        else if (lockType == LockType.WRITE) {
-            database.getLock().readLock().lock();
+        catch (IOException|RuntimeException e) {
+            database.getLockManager().unlock(branch, lockType);
+            throw e;
         }
-        this.gfs =  Gfs.newFileSystem(branch, database.getRepository());
     }
 
     public Transaction(Database database, String branch) throws IOException {
         this(database, branch, LockType.WRITE);
     }
 
+    // for transactions that take no branch lock and may open their file system lazily, e.g. snapshots
+    Transaction(Database database, String branch, LockType lockType, GitFileSystem gfs) {
+        this.database = database;
+        this.branch = branch;
+        this.lockType = lockType;
+        this.gfs = gfs;
+    }
+
     @Override
     public void close() throws IOException {
-        gfs.close();
-        if (lockType == LockType.EXCLUSIVE) {
-            database.getLock().writeLock().unlock();
+        try {
+            gfs.close();
         }
-        if (lockType == LockType.WRITE) {
-            database.getLock().readLock().unlock();
+        finally {
+            database.getLockManager().unlock(branch, lockType);
         }
     }
 
@@ -92,9 +108,39 @@ public class Transaction implements Closeable {
         if (lockType == LockType.READ) {
             throw new IOException("Can't commit readonly transaction");
         }
+        PersonIdent authorId = author != null && email != null ? new PersonIdent(author, email) : null;
+        GroupCommitter groupCommitter = database.getGroupCommitter();
+        if (groupCommitter != null && gfs.getStatusProvider().isAttached() && gfs.getStatusProvider().isInitialized()) {
+            if (baseTree == null) {
+                baseTree = gfs.getStatusProvider().commit().getTree();
+            }
+            ObjectId tree = gfs.flush();
+            if (!tree.equals(baseTree)) {
+                groupCommitter.commit(branch, baseTree, tree, message, authorId);
+                gfs.updateOrigin(tree);
+                baseTree = tree;
+            }
+            return;
+        }
+        if (!database.isMergeOnConflict()) {
+            doCommit(message, authorId);
+            return;
+        }
+        ObjectId base = gfs.getStatusProvider().isInitialized() ? gfs.getStatusProvider().commit().getTree() : null;
+        try {
+            doCommit(message, authorId);
+        }
+        catch (RefUpdateRejectedException|RefUpdateLockFailureException e) {
+            if (base == null) {
+                throw e;
+            }
+            database.mergeCommit(branch, base, gfs.flush(), message, author, email);
+        }
+    }
+
+    void doCommit(String message, PersonIdent authorId) throws IOException {
         GfsCommit commit = Gfs.commit(gfs).message(message);
-        if (author != null && email != null) {
-            PersonIdent authorId = new PersonIdent(author, email);
+        if (authorId != null) {
             commit.author(authorId);
         }
         commit.execute();
@@ -105,10 +151,36 @@ public class Transaction implements Closeable {
     }
 
     public GitPath getIdPath(EntityId entityId) {
-        return gfs.getPath("/", IDS_PATH, entityId.getId());
+        return getFileSystem().getPath("/", IDS_PATH, entityId.getId());
     }
 
-    static ObjectId getObjectId(GitPath path) throws IOException {
+    // the entry of a path in the tree this transaction started from, null if the transaction has changed it
+    GitFileEntry getEntry(String path) throws IOException {
+        Node node = getNode(gfs.getPath("/", path));
+        if (node == null) {
+            return GitFileEntry.missingEntry();
+        }
+        return node.isModified() ? null : node.getOrigin();
+    }
+
+    // the content of a file, null if there is none
+    byte[] readFile(String path) throws IOException {
+        GitPath gitPath = gfs.getPath("/", path);
+        return Files.isRegularFile(gitPath) ? Files.readAllBytes(gitPath) : null;
+    }
+
+    // names of the children of a directory, empty if there is none
+    List<String> list(String path) throws IOException {
+        GitPath gitPath = gfs.getPath("/", path);
+        if (!Files.isDirectory(gitPath)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> stream = Files.list(gitPath)) {
+            return stream.map(child -> child.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+
+    static Node getNode(GitPath path) throws IOException {
         if(!path.isAbsolute()) throw new IllegalArgumentException(path.toString());
         Node current = path.getFileStore().getRoot();
         for(int i = 0; i < path.getNameCount(); i++) {
@@ -122,7 +194,21 @@ public class Transaction implements Closeable {
             else
                 return null;
         }
-        return current.getObjectId(false);
+        return current;
+    }
+
+    // the last name is answered by its directory, so an entry that was not touched gets no node
+    static ObjectId getObjectId(GitPath path) throws IOException {
+        GitPath parentPath = path.getParent();
+        if (parentPath == null) {
+            Node node = getNode(path);
+            return node == null ? null : node.getObjectId(false);
+        }
+        Node parent = getNode(parentPath);
+        if (!(parent instanceof DirectoryNode)) {
+            return null;
+        }
+        return ((DirectoryNode) parent).getChildObjectId(path.getFileName().toString());
     }
 
     public Entity create(Entity entity) throws IOException {
@@ -145,9 +231,12 @@ public class Transaction implements Closeable {
         try {
             return getObjectId(path) != null;
         }
-        catch (Throwable e) {
+        catch (MissingObjectException e) {
             return false;
         }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private long getRev(GitPath path) throws IOException {
@@ -155,8 +244,7 @@ public class Transaction implements Closeable {
         if (objectId == null) {
             throw new IOException("Path not found: " + path.toString());
         }
-        String sha1 = objectId.getName();
-        return Long.parseUnsignedLong(sha1.substring(sha1.length() - 12), 16);
+        return getRev(objectId);
 //        RevCommit commit = getLastCommit(path);
 //        if (commit == null) {
 //            throw new IOException("Path not found: " + path.toString());
@@ -165,6 +253,11 @@ public class Transaction implements Closeable {
 //        return commitTime;
     }
 
+    static long getRev(ObjectId objectId) {
+        String sha1 = objectId.getName();
+        return Long.parseUnsignedLong(sha1.substring(sha1.length() - 12), 16);
+    }
+
     public Entity update(Entity entity) throws IOException {
         GitPath path = getIdPath(entity);
         if (getRev(path) != entity.getRev()) {
@@ -185,9 +278,15 @@ public class Transaction implements Closeable {
     }
 
     public List<EntityId> all() throws IOException {
+        try (Stream<EntityId> stream = stream()) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    public Stream<EntityId> stream() throws IOException {
         GitPath idsPath = gfs.getPath("/", IDS_PATH);
         if (!Files.exists(idsPath)) {
-            return Collections.emptyList();
+            return Stream.empty();
         }
         return Files.walk(idsPath).filter(Files::isRegularFile).map(file -> {
             String id = idsPath.relativize(file).toString();
@@ -199,7 +298,7 @@ public class Transaction implements Closeable {
                 commitTime = 0;
             }
             return new EntityId(id, commitTime);
-        }).collect(Collectors.toList());
+        });
     }
 
     public Database getDatabase() {
@@ -209,8 +308,13 @@ public class Transaction implements Closeable {
     public GitFileSystem getFileSystem() {
         return gfs;
     }
+
+    public String getBranch() {
+        return branch;
+    }
+
     public ClassLoader getClassLoader(ClassLoader parent) {
-        ClassLoader classLoader = new PathClassLoader(gfs.getRootPath(), parent);
+        ClassLoader classLoader = new PathClassLoader(getFileSystem().getRootPath(), parent);
         return classLoader;
     }
 
@@ -0,0 +1,42 @@
+package ru.neoflex.meta.emfgit;
+
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.xmi.impl.XMIResourceImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+public class XmiResourceCodec implements ResourceCodec {
+    public static final String NAME = "xmi";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] content) {
+        for (byte b: content) {
+            if (b == '<') {
+                return true;
+            }
+            // skip UTF-8 BOM and leading whitespace
+            if (b != (byte) 0xEF && b != (byte) 0xBB && b != (byte) 0xBF && !Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void encode(Resource resource, OutputStream os, Map<?, ?> options) throws IOException {
+        ((XMIResourceImpl) resource).doSave(os, options);
+    }
+
+    @Override
+    public void decode(byte[] content, Resource resource, Map<?, ?> options) throws IOException {
+        ((XMIResourceImpl) resource).doLoad(new ByteArrayInputStream(content), options);
+    }
+}
@@ -1,8 +1,13 @@
 package ru.neoflex.meta.emfgit;
 
+import com.beijunyi.parallelgit.filesystem.GfsObjectCache;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.xmi.impl.XMIResourceImpl;
+import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,10 +18,15 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static ru.neoflex.meta.emfgit.Database.TYPE_NAME_IDX;
 import static ru.neoflex.meta.emfgit.Database.IDX_PATH;
+import static ru.neoflex.meta.emfgit.Database.REF_IDX;
 
 public class DatabaseTests extends TestBase {
     @Before
@@ -141,6 +151,610 @@ public class DatabaseTests extends TestBase {
         }
     }
 
+    @Test
+    public void testDependencyClosure() throws Exception {
+        String groupId;
+        String departmentId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            Department department = TestFactory.eINSTANCE.createDepartment();
+            department.setName("sales");
+            Resource departmentResource = database.createResource(tx, null);
+            departmentResource.getContents().add(department);
+            departmentResource.save(null);
+            for (int i = 0; i < 6; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(group);
+                user.setDepartment(i % 2 == 0 ? department : null);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+            groupId = database.getResourceId(groupResource);
+            departmentId = database.getResourceId(departmentResource);
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals(6, database.getDependentIds(groupId, tx).size());
+            Assert.assertEquals(3, database.getDependentIds(departmentId, tx).size());
+            List<String> ids = new ArrayList<>();
+            ids.add(groupId);
+            ids.add(departmentId);
+            Assert.assertEquals(8, database.getDependentIds(ids, tx, false).size());
+            Assert.assertEquals(8, database.getDependentIds(ids, tx, true).size());
+            List<Resource> roots = new ArrayList<>();
+            roots.add(database.loadResource(groupId, tx));
+            roots.add(database.loadResource(departmentId, tx));
+            List<Resource> closure = database.getDependentResourcesRecursive(roots, tx);
+            Assert.assertEquals(8, closure.size());
+            Assert.assertSame(roots.get(0), closure.get(0));
+            List<Resource> loaded = database.loadResources(database.getDependentIds(groupId, tx), tx, ForkJoinPool.commonPool(), 4);
+            Assert.assertEquals(6, loaded.size());
+            for (Resource resource: loaded) {
+                Assert.assertTrue(resource.getContents().get(0) instanceof User);
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String groupId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            tx.commit("Group masters created");
+            groupId = database.getResourceId(groupResource);
+        }
+        int commitsBefore = countCommits("users");
+        database.setGroupCommitter(new GroupCommitter(database, 50, 64));
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            String name = "User_" + i;
+            threads.add(new Thread(() -> {
+                try {
+                    database.inTransaction("users", Transaction.LockType.WRITE, tx -> {
+                        User user = TestFactory.eINSTANCE.createUser();
+                        user.setName(name);
+                        user.setGroup((Group) database.loadResource(groupId, tx).getContents().get(0));
+                        Resource userResource = database.createResource(tx, null);
+                        userResource.getContents().add(user);
+                        userResource.save(null);
+                        tx.commit("User " + name + " created");
+                        return null;
+                    });
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        Assert.assertTrue(countCommits("users") - commitsBefore < 8);
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals(8, database.getDependentIds(groupId, tx).size());
+            Assert.assertEquals(8, database.findByEClass(TestPackage.eINSTANCE.getUser(), null, tx).getResources().size());
+        }
+        try (Transaction tx1 = database.createTransaction("users"); Transaction tx2 = database.createTransaction("users")) {
+            Resource group1 = database.loadResource(groupId, tx1);
+            ((Group) group1.getContents().get(0)).setName("masters1");
+            group1.save(null);
+            Resource group2 = database.loadResource(groupId, tx2);
+            ((Group) group2.getContents().get(0)).setName("masters2");
+            group2.save(null);
+            tx1.commit("Group renamed");
+            try {
+                tx2.commit("Group renamed again");
+                Assert.fail("Conflict expected");
+            }
+            catch (CommitConflictException e) {
+                Assert.assertTrue(e.getPath().contains(groupId));
+            }
+        }
+    }
+
+    @Test
+    public void testMergeOnConflict() throws Exception {
+        String groupId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            tx.commit("Group masters created");
+            groupId = database.getResourceId(groupResource);
+        }
+        database.setMergeOnConflict(true);
+        try (Transaction tx1 = database.createTransaction("users"); Transaction tx2 = database.createTransaction("users")) {
+            for (Transaction tx: new Transaction[] {tx1, tx2}) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName(tx == tx1 ? "Orlov" : "Simanihin");
+                user.setGroup((Group) database.loadResource(groupId, tx).getContents().get(0));
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx1.commit("User Orlov created");
+            tx2.commit("User Simanihin created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals(2, database.findByEClass(TestPackage.eINSTANCE.getUser(), null, tx).getResources().size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getUser(), "Simanihin", tx).getResources().size());
+            Assert.assertEquals(2, database.getDependentIds(groupId, tx).size());
+        }
+        try (Transaction tx1 = database.createTransaction("users"); Transaction tx2 = database.createTransaction("users")) {
+            Resource group1 = database.loadResource(groupId, tx1);
+            ((Group) group1.getContents().get(0)).setName("masters1");
+            group1.save(null);
+            Resource group2 = database.loadResource(groupId, tx2);
+            ((Group) group2.getContents().get(0)).setName("masters2");
+            group2.save(null);
+            tx1.commit("Group renamed");
+            try {
+                tx2.commit("Group renamed again");
+                Assert.fail("Conflict expected");
+            }
+            catch (CommitConflictException e) {
+                Assert.assertTrue(e.getPath().contains(groupId));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalReindex() throws Exception {
+        String groupId;
+        String userId = null;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            groupId = database.getResourceId(groupResource);
+            for (int i = 0; i < 3; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(group);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+                userId = database.getResourceId(userResource);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertNull(database.getIndexWatermark(tx));
+            Assert.assertEquals(4, database.reindexIncremental(tx));
+            Assert.assertNotNull(database.getIndexWatermark(tx));
+            tx.commit("Indexes rebuilt");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertEquals(0, database.reindexIncremental(tx));
+            Resource groupResource = database.loadResource(groupId, tx);
+            ((Group) groupResource.getContents().get(0)).setName("renamed");
+            Files.write(tx.getIdPath(new EntityId(groupId)), database.saveResource(groupResource, null));
+            Files.delete(tx.getIdPath(new EntityId(userId)));
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "masters", tx).getResources().size());
+            Assert.assertEquals(2, database.reindexIncremental(tx));
+            Assert.assertEquals(0, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "masters", tx).getResources().size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "renamed", tx).getResources().size());
+            Assert.assertEquals(2, database.findByEClass(TestPackage.eINSTANCE.getUser(), null, tx).getResources().size());
+            Assert.assertEquals(2, database.getDependentIds(groupId, tx).size());
+            tx.commit("Edited without events");
+        }
+    }
+
+    @Test
+    public void testChangeFeed() throws Exception {
+        String cursor = database.getHeadCursor("users");
+        String groupId;
+        String userId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            groupId = database.getResourceId(groupResource);
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("Orlov");
+            user.setGroup(group);
+            Resource userResource = database.createResource(tx, null);
+            userResource.getContents().add(user);
+            userResource.save(null);
+            userId = database.getResourceId(userResource);
+            tx.commit("User and group created");
+        }
+        long rev;
+        try (Transaction tx = database.createTransaction("users")) {
+            Resource userResource = database.loadResource(userId, tx);
+            ((User) userResource.getContents().get(0)).setName("Simanihin");
+            userResource.save(null);
+            rev = database.getRev(userResource.getURI());
+            tx.commit("User renamed");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            database.loadResource(userId, tx).delete(null);
+            tx.commit("User deleted");
+        }
+        List<CommitChanges> page = database.getChanges("users", cursor, 2);
+        Assert.assertEquals(2, page.size());
+        Assert.assertEquals(2, page.get(0).getChanges().size());
+        for (EntityChange change: page.get(0).getChanges()) {
+            Assert.assertEquals(EntityChange.Type.CREATED, change.getType());
+            Assert.assertTrue(change.getId().equals(groupId) || change.getId().equals(userId));
+        }
+        Assert.assertEquals(1, page.get(1).getChanges().size());
+        Assert.assertEquals(EntityChange.Type.UPDATED, page.get(1).getChanges().get(0).getType());
+        Assert.assertEquals(rev, page.get(1).getChanges().get(0).getRev());
+        page = database.getChanges("users", page.get(1).getCursor(), 10);
+        Assert.assertEquals(1, page.size());
+        Assert.assertEquals(EntityChange.Type.DELETED, page.get(0).getChanges().get(0).getType());
+        Assert.assertEquals(userId, page.get(0).getChanges().get(0).getId());
+        Assert.assertEquals(rev, page.get(0).getChanges().get(0).getRev());
+        Assert.assertEquals(0, database.getChanges("users", page.get(0).getCursor(), 10).size());
+        Assert.assertEquals(database.getHeadCursor("users"), page.get(0).getCursor());
+    }
+
+    @Test
+    public void testSnapshotTransaction() throws Exception {
+        String groupId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            groupId = database.getResourceId(groupResource);
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("Orlov");
+            user.setGroup(group);
+            Resource userResource = database.createResource(tx, null);
+            userResource.getContents().add(user);
+            userResource.save(null);
+            tx.commit("User and group created");
+        }
+        String cursor = database.getHeadCursor("users");
+        try (Transaction snapshot = database.createSnapshot("users")) {
+            try (Transaction tx = database.createTransaction("users")) {
+                Resource groupResource = database.loadResource(groupId, tx);
+                ((Group) groupResource.getContents().get(0)).setName("renamed");
+                groupResource.save(null);
+                tx.commit("Group renamed");
+            }
+            Assert.assertEquals(2, snapshot.all().size());
+            Assert.assertEquals("masters", ((Group) database.loadResource(groupId, snapshot).getContents().get(0)).getName());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "masters", snapshot).getResources().size());
+            Assert.assertEquals(0, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "renamed", snapshot).getResources().size());
+            Assert.assertEquals(1, database.getDependentIds(groupId, snapshot).size());
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("Simanihin");
+            Resource userResource = database.createResource(snapshot, null);
+            userResource.getContents().add(user);
+            try {
+                userResource.save(null);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertTrue(true);
+            }
+        }
+        try (Transaction snapshot = database.createSnapshot("users")) {
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "renamed", snapshot).getResources().size());
+        }
+        try (Transaction snapshot = database.createSnapshot("users", ObjectId.fromString(cursor))) {
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getGroup(), "masters", snapshot).getResources().size());
+        }
+    }
+
+    @Test
+    public void testBranchLocks() throws Exception {
+        database.getLockManager().setLockTimeoutMs(100);
+        try (Transaction exclusive = database.createTransaction("users", Transaction.LockType.EXCLUSIVE)) {
+            List<Exception> errors = new ArrayList<>();
+            Thread thread = new Thread(() -> {
+                try (Transaction tx = database.createTransaction("master")) {
+                    Assert.assertNotNull(tx.getFileSystem());
+                }
+                catch (Exception e) {
+                    errors.add(e);
+                }
+                try (Transaction tx = database.createTransaction("users")) {
+                    errors.add(new IllegalStateException("Lock timeout expected"));
+                }
+                catch (IOException e) {
+                    Assert.assertTrue(e.getMessage().startsWith("Timeout"));
+                }
+            });
+            thread.start();
+            thread.join();
+            Assert.assertTrue(errors.isEmpty());
+        }
+        Assert.assertEquals(1, database.getLockManager().getStats().get("timeouts").asInt());
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertNotNull(tx.getFileSystem());
+        }
+    }
+
+    private int countCommits(String branch) throws Exception {
+        int count = 0;
+        for (RevCommit ignored: new Git(database.getRepository()).log().add(database.getRepository().resolve(branch)).call()) {
+            ++count;
+        }
+        return count;
+    }
+
+    @Test
+    public void testObjectCache() throws Exception {
+        String groupId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            tx.commit("Group masters created");
+            groupId = database.getResourceId(groupResource);
+        }
+        database.getObjectCache().clear();
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            database.loadResource(groupId, tx);
+        }
+        long misses = database.getObjectCache().getStats().getMissCount();
+        long hits = database.getObjectCache().getStats().getHitCount();
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Resource groupResource = database.loadResource(groupId, tx);
+            Assert.assertEquals("masters", ((Group) groupResource.getContents().get(0)).getName());
+        }
+        Assert.assertEquals(misses, database.getObjectCache().getStats().getMissCount());
+        Assert.assertTrue(database.getObjectCache().getStats().getHitCount() > hits);
+        database.getObjectCache().setMaxWeight(0);
+        Assert.assertEquals(0, database.getObjectCache().getStats().getObjectCount());
+        database.getObjectCache().setMaxWeight(GfsObjectCache.DEFAULT_MAX_WEIGHT);
+    }
+
+    @Test
+    public void testLazyDirectory() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            for (int i = 0; i < 100; ++i) {
+                Path path = tx.getFileSystem().getPath("/lazy/" + i);
+                Files.createDirectories(path.getParent());
+                Files.write(path, String.valueOf(i).getBytes());
+            }
+            tx.commit("Files created");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertNotNull(Transaction.getObjectId(tx.getFileSystem().getPath("/lazy/5")));
+            Assert.assertNull(Transaction.getObjectId(tx.getFileSystem().getPath("/lazy/missing")));
+            Files.delete(tx.getFileSystem().getPath("/lazy/1"));
+            Files.delete(tx.getFileSystem().getPath("/lazy/2"));
+            Files.write(tx.getFileSystem().getPath("/lazy/2"), "two".getBytes());
+            Files.write(tx.getFileSystem().getPath("/lazy/3"), "three".getBytes());
+            Assert.assertFalse(Files.exists(tx.getFileSystem().getPath("/lazy/1")));
+            tx.commit("Files changed");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            List<String> names = new ArrayList<>();
+            try (Stream<Path> stream = Files.list(tx.getFileSystem().getPath("/lazy"))) {
+                stream.forEach(path -> names.add(path.getFileName().toString()));
+            }
+            Assert.assertEquals(99, names.size());
+            Assert.assertFalse(names.contains("1"));
+            Assert.assertEquals("two", new String(Files.readAllBytes(tx.getFileSystem().getPath("/lazy/2"))));
+            Assert.assertEquals("three", new String(Files.readAllBytes(tx.getFileSystem().getPath("/lazy/3"))));
+            Assert.assertEquals("99", new String(Files.readAllBytes(tx.getFileSystem().getPath("/lazy/99"))));
+        }
+    }
+
+    @Test
+    public void testDirtyFlush() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            Files.createDirectories(tx.getFileSystem().getPath("/clean"));
+            Files.createDirectories(tx.getFileSystem().getPath("/dirty"));
+            Files.write(tx.getFileSystem().getPath("/clean/1"), "1".getBytes());
+            Files.write(tx.getFileSystem().getPath("/dirty/1"), "1".getBytes());
+            tx.commit("Files created");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertEquals("1", new String(Files.readAllBytes(tx.getFileSystem().getPath("/clean/1"))));
+            Files.write(tx.getFileSystem().getPath("/dirty/2"), "2".getBytes());
+            Assert.assertFalse(Transaction.getNode(tx.getFileSystem().getPath("/clean")).isDirty());
+            Assert.assertTrue(Transaction.getNode(tx.getFileSystem().getPath("/clean/1")).isPersisted());
+            Assert.assertTrue(Transaction.getNode(tx.getFileSystem().getPath("/dirty")).isDirty());
+            Assert.assertTrue(Transaction.getNode(tx.getFileSystem().getPath("/")).isDirty());
+            tx.getFileSystem().flush();
+            Assert.assertFalse(Transaction.getNode(tx.getFileSystem().getPath("/dirty")).isDirty());
+            Assert.assertTrue(Transaction.getNode(tx.getFileSystem().getPath("/dirty/2")).isPersisted());
+            Assert.assertTrue(Transaction.getNode(tx.getFileSystem().getPath("/")).isPersisted());
+            tx.commit("File added");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals("2", new String(Files.readAllBytes(tx.getFileSystem().getPath("/dirty/2"))));
+        }
+    }
+
+    @Test
+    public void testResourceCache() throws Exception {
+        String userId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("Orlov");
+            user.setGroup(group);
+            Resource userResource = database.createResource(tx, null);
+            userResource.getContents().add(user);
+            userResource.save(null);
+            tx.commit("User Orlov and group masters created");
+            userId = database.getResourceId(userResource);
+        }
+        ResourceCache cache = new ResourceCache();
+        database.setResourceCache(cache);
+        try {
+            User first;
+            try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+                first = (User) database.loadResource(userId, tx).getContents().get(0);
+            }
+            Assert.assertEquals(0, cache.getHitCount());
+            try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+                Resource userResource = database.loadResource(userId, tx);
+                User second = (User) userResource.getContents().get(0);
+                Assert.assertNotSame(first, second);
+                Assert.assertEquals(database.getResourceId(first.eResource()), database.getResourceId(userResource));
+                Assert.assertEquals(((XMIResourceImpl) first.eResource()).getID(first), ((XMIResourceImpl) userResource).getID(second));
+                Assert.assertEquals("masters", second.getGroup().getName());
+                second.setName("Simanihin");
+            }
+            Assert.assertTrue(cache.getHitCount() > 0);
+            try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+                User third = (User) database.loadResource(userId, tx).getContents().get(0);
+                Assert.assertEquals("Orlov", third.getName());
+            }
+        }
+        finally {
+            database.setResourceCache(null);
+        }
+    }
+
+    @Test
+    public void testSegmentIndexStore() throws Exception {
+        SegmentIndexStore indexStore = new SegmentIndexStore();
+        Assert.assertEquals(SegmentIndexStore.TYPE_NAME_SHARD_DEPTH, indexStore.getShardDepth(TYPE_NAME_IDX));
+        Assert.assertEquals(SegmentIndexStore.DEFAULT_SHARD_DEPTH, indexStore.getShardDepth("user_name"));
+        database.setIndexStore(indexStore);
+        String groupId;
+        String userId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            groupId = database.getResourceId(groupResource);
+            for (int i = 0; i < 10; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(group);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("User_1x");
+            Resource userResource = database.createResource(tx, null);
+            userResource.getContents().add(user);
+            userResource.save(null);
+            userId = database.getResourceId(userResource);
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path indexPath = tx.getFileSystem().getPath("/", IDX_PATH, TYPE_NAME_IDX);
+            // type_name is sharded by class and name, so the users of one package don't share a shard
+            long shards = Files.list(indexPath).count();
+            Assert.assertTrue(shards > 2);
+            Assert.assertEquals(11, database.findByEClass(TestPackage.Literals.USER, null, tx).getResources().size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.Literals.USER, "User_1", tx).getResources().size());
+            Assert.assertEquals(10, database.getDependentResources(groupId, tx).size());
+            Assert.assertEquals(12, database.findByIndex(tx, TYPE_NAME_IDX).size());
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("User_1");
+            Resource userResource = database.createResource(tx, null);
+            userResource.getContents().add(user);
+            try {
+                userResource.save(null);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Duplicate"));
+            }
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Resource userResource = database.loadResource(userId, tx);
+            ((User) userResource.getContents().get(0)).setName("User_renamed");
+            userResource.save(null);
+            tx.commit("User renamed");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Assert.assertEquals(0, database.findByEClass(TestPackage.Literals.USER, "User_1x", tx).getResources().size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.Literals.USER, "User_renamed", tx).getResources().size());
+            database.reindex(tx);
+            Assert.assertEquals(11, database.findByEClass(TestPackage.Literals.USER, null, tx).getResources().size());
+            Assert.assertEquals(10, database.getDependentResources(groupId, tx).size());
+        }
+    }
+
+    @Test
+    public void testIndexSnapshots() throws Exception {
+        FileIndexStore indexStore = (FileIndexStore) database.getIndexStore();
+        String groupId;
+        try (Transaction tx = database.createTransaction("users")) {
+            Group group = TestFactory.eINSTANCE.createGroup();
+            group.setName("masters");
+            Resource groupResource = database.createResource(tx, null);
+            groupResource.getContents().add(group);
+            groupResource.save(null);
+            groupId = database.getResourceId(groupResource);
+            for (int i = 0; i < 5; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(group);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            assertSameEntries(indexStore, tx, TYPE_NAME_IDX);
+            Assert.assertEquals(5, database.getDependentResources(groupId, tx).size());
+            Resource userResource = database.findByEClass(TestPackage.Literals.USER, "User_0", tx).getResources().get(0);
+            userResource.delete(null);
+            User user = TestFactory.eINSTANCE.createUser();
+            user.setName("User_5");
+            Resource newResource = database.createResource(tx, null);
+            newResource.getContents().add(user);
+            newResource.save(null);
+            assertSameEntries(indexStore, tx, TYPE_NAME_IDX);
+            Assert.assertEquals(4, database.getDependentResources(groupId, tx).size());
+            Assert.assertEquals(0, database.findByEClass(TestPackage.Literals.USER, "User_0", tx).getResources().size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.Literals.USER, "User_5", tx).getResources().size());
+            tx.commit("Users changed");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            assertSameEntries(indexStore, tx, TYPE_NAME_IDX);
+            assertSameEntries(indexStore, tx, REF_IDX);
+            Assert.assertEquals(5, database.findByEClass(TestPackage.Literals.USER, null, tx).getResources().size());
+        }
+    }
+
+    private void assertSameEntries(FileIndexStore indexStore, Transaction tx, String indexName) throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (IndexEntry entry: indexStore.walk(tx, indexName)) {
+            expected.add(String.join("/", entry.getPath()) + "=" + new String(entry.getContent()));
+        }
+        List<String> actual = new ArrayList<>();
+        for (IndexEntry entry: indexStore.find(tx, indexName)) {
+            actual.add(String.join("/", entry.getPath()) + "=" + new String(entry.getContent()));
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        Assert.assertEquals(expected, actual);
+    }
+
     @Test
     public void testClassLoader() throws Exception {
         String content = "test content";
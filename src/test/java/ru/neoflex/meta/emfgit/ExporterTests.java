@@ -122,4 +122,67 @@ public class ExporterTests extends TestBase {
             Assert.assertEquals(3, tx.all().size());
         }
     }
+
+    @Test
+    public void bulkZipTest() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/zip/all.zip");
+            Files.createDirectories(path.getParent());
+            ResourceSet resourceSet = database.createResourceSet(tx);
+            for (EntityId entityId: tx.all()) {
+                Resource resource = resourceSet.createResource(database.createURI(entityId.getId()));
+                resource.load(null);
+            }
+            exporter.zip(resourceSet, Files.newOutputStream(path));
+            tx.commit("Zip all objects");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/db");
+            database.deleteRecursive(path);
+            tx.commit("Database was deleted");
+            Assert.assertEquals(0, tx.all().size());
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/zip/all.zip");
+            Assert.assertEquals(3, exporter.bulkUnzip(Files.newInputStream(path), tx));
+            tx.commit("Database was restored from zip archive");
+            Assert.assertEquals(3, tx.all().size());
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/zip/all.zip");
+            Assert.assertEquals(3, exporter.bulkUnzip(Files.newInputStream(path), tx));
+            tx.commit("Database was restored 2 time with zip archive");
+            Assert.assertEquals(3, tx.all().size());
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            User restored = (User) database.loadResource(userId, tx).getContents().get(0);
+            Assert.assertEquals("masters", restored.getGroup().getName());
+            Assert.assertEquals("System", restored.getDepartment().getName());
+            Assert.assertEquals(1, database.getDependentIds(groupId, tx).size());
+            Assert.assertEquals(1, database.findByEClass(TestPackage.eINSTANCE.getUser(), "Orlov", tx).getResources().size());
+        }
+    }
+
+    @Test
+    public void zipAllTest() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/zip/all.zip");
+            Files.createDirectories(path.getParent());
+            exporter.zipAll("users", Files.newOutputStream(path));
+            tx.commit("Zip all objects");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/db");
+            database.deleteRecursive(path);
+            tx.commit("Database was deleted");
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Path path = tx.getFileSystem().getPath("/zip/all.zip");
+            Assert.assertEquals(3, exporter.unzip(Files.newInputStream(path), tx));
+            tx.commit("Database was restored from zip archive");
+            Assert.assertEquals(3, tx.all().size());
+            User restored = (User) database.findByEClass(TestPackage.eINSTANCE.getUser(), "Orlov", tx).getResources().get(0).getContents().get(0);
+            Assert.assertEquals("masters", restored.getGroup().getName());
+        }
+    }
 }
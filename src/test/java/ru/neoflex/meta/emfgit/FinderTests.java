@@ -1,5 +1,9 @@
 package ru.neoflex.meta.emfgit;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.junit.Assert;
@@ -10,8 +14,11 @@ import ru.neoflex.meta.test.TestFactory;
 import ru.neoflex.meta.test.TestPackage;
 import ru.neoflex.meta.test.User;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class FinderTests extends TestBase {
     User user;
@@ -70,4 +77,247 @@ public class FinderTests extends TestBase {
             Assert.assertEquals(1, finder.getResourceSet().getResources().size());
         }
     }
+
+    @Test
+    public void queryPlans() throws Exception {
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").put("$regex", "Sim.*");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.NAME_FILTER, finder.getPlan().getAccessPath());
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+            Assert.assertEquals(1, finder.getExecutionStats().get("idsLoaded").asInt());
+            Assert.assertTrue(finder.getExecutionStats().has("cost"));
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").putArray("$in").add("Orlov").add("Simanihin").add("Nobody");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.NAME, finder.getPlan().getAccessPath());
+            Assert.assertEquals(2, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("group").put("name", "masters");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.ECLASS, finder.getPlan().getAccessPath());
+            Assert.assertEquals(2, finder.getResourceSet().getResources().size());
+            Assert.assertEquals(2, database.countByIndex(tx, Database.TYPE_NAME_IDX,
+                    TestPackage.eNS_URI, TestPackage.eINSTANCE.getUser().getName()));
+
+            finder = Finder.create();
+            finder.selector().put("id", userId);
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.ID, finder.getPlan().getAccessPath());
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create();
+            finder.selector().with("contents").put("name", "masters");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.FULL_SCAN, finder.getPlan().getAccessPath());
+            Assert.assertEquals("No index used", finder.getWarning());
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+        }
+        Assert.assertEquals("Sim", QueryPlanner.literalPrefix("^Sim.*"));
+        Assert.assertEquals("Si", QueryPlanner.literalPrefix("Sim?"));
+        Assert.assertEquals("", QueryPlanner.literalPrefix("Sim|Orl"));
+    }
+
+    @Test
+    public void streamFind() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            for (int i = 0; i < 20; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(i % 2 == 0 ? group : null);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser()).limit(3);
+            int count = 0;
+            for (Iterator<Resource> it = finder.iterator(tx); it.hasNext();) {
+                Assert.assertTrue(it.next().getContents().get(0) instanceof User);
+                ++count;
+            }
+            Assert.assertEquals(3, count);
+            Assert.assertEquals(3, finder.getExecutionStats().get("idsLoaded").asInt());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser()).skip(2).limit(4);
+            finder.selector().with("contents").with("group").put("name", "masters");
+            finder.execute(tx);
+            Assert.assertEquals(4, finder.getResourceSet().getResources().size());
+            for (Resource resource: finder.getResourceSet().getResources()) {
+                Assert.assertEquals("masters", ((User) resource.getContents().get(0)).getGroup().getName());
+            }
+        }
+    }
+
+    @Test
+    public void parallelFind() throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            for (int i = 0; i < 50; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setGroup(i % 3 == 0 ? group : null);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder sequential = Finder.create(TestPackage.eINSTANCE.getUser()).skip(3).limit(10);
+            sequential.selector().with("contents").with("group").put("name", "masters");
+            sequential.execute(tx);
+            Finder parallel = Finder.create(TestPackage.eINSTANCE.getUser()).skip(3).limit(10).parallel(new ForkJoinPool(4)).batchSize(7);
+            parallel.selector().with("contents").with("group").put("name", "masters");
+            parallel.execute(tx);
+            Assert.assertEquals(10, parallel.getResourceSet().getResources().size());
+            for (int i = 0; i < 10; ++i) {
+                Assert.assertEquals(database.getResourceId(sequential.getResourceSet().getResources().get(i)),
+                        database.getResourceId(parallel.getResourceSet().getResources().get(i)));
+            }
+            Finder full = Finder.create().parallel();
+            full.selector().with("contents").put("name", "masters");
+            full.execute(tx);
+            Assert.assertEquals(1, full.getResourceSet().getResources().size());
+            Assert.assertEquals(53, full.getExecutionStats().get("resLoaded").asInt());
+        }
+    }
+
+    @Test
+    public void compiledQueries() throws Exception {
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").put("$ne", "Orlov");
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+            Assert.assertEquals("Simanihin", ((User) finder.getResourceSet().getResources().get(0).getContents().get(0)).getName());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").putArray("$nin").add("Orlov");
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("department").put("$exists", false);
+            finder.execute(tx);
+            Assert.assertEquals(2, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").putArray("$or")
+                    .add(new ObjectMapper().createObjectNode().put("name", "Orlov"))
+                    .add(new ObjectMapper().createObjectNode().put("name", "Nobody"));
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").put("$gte", "P");
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+        }
+        Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+        finder.selector().with("contents").with("name").put("$regex", "O.*");
+        Finder same = Finder.create(TestPackage.eINSTANCE.getUser());
+        same.selector().with("contents").with("name").put("$regex", "O.*");
+        Assert.assertSame(CompiledQuery.compile(finder.selector()), CompiledQuery.compile(same.selector()));
+    }
+
+    @Test
+    public void attributeIndex() throws Exception {
+        database.createAttributeIndex("user_name", TestPackage.eINSTANCE.getUser(), TestPackage.eINSTANCE.getUser_Name());
+        try (Transaction tx = database.createTransaction("users")) {
+            database.reindex(tx);
+            for (int i = 0; i < 20; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").put("$gte", "User_5").put("$lt", "User_9");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.ATTRIBUTE, finder.getPlan().getAccessPath());
+            Assert.assertEquals(4, finder.getResourceSet().getResources().size());
+            Assert.assertEquals(5, finder.getExecutionStats().get("idsLoaded").asInt());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").with("name").putArray("$in").add("Orlov").add("User_1");
+            finder.execute(tx);
+            Assert.assertEquals(2, finder.getResourceSet().getResources().size());
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser(), Collections.singletonMap("name", "Orlov")).execute(tx);
+            finder.getResourceSet().getResources().get(0).delete(null);
+            tx.commit("User deleted");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals(21, database.findByIndex(tx, "user_name").size());
+        }
+        Assert.assertTrue(AttributeIndex.encodeKey(-5L).compareTo(AttributeIndex.encodeKey(3)) < 0);
+        Assert.assertTrue(AttributeIndex.encodeKey(-2.5).compareTo(AttributeIndex.encodeKey(-1.0)) < 0);
+        Assert.assertTrue(AttributeIndex.encodeKey(1.5).compareTo(AttributeIndex.encodeKey(10.0)) < 0);
+        Assert.assertTrue(AttributeIndex.encodeKey("ab").compareTo(AttributeIndex.encodeKey("abc")) < 0);
+        EAttribute weight = EcoreFactory.eINSTANCE.createEAttribute();
+        weight.setName("weight");
+        weight.setEType(EcorePackage.eINSTANCE.getEFloat());
+        Assert.assertEquals(AttributeIndex.encodeKey(1.1f),
+                AttributeIndex.encodeKey(AttributeIndex.toValue(weight, new ObjectMapper().readTree("1.1"))));
+        Assert.assertEquals(AttributeIndex.encodeKey(1.1f),
+                AttributeIndex.encodeKey(AttributeIndex.toValue(weight, new ObjectMapper().readTree("\"1.1\""))));
+    }
+
+    @Test
+    public void textIndex() throws Exception {
+        database.createTextIndex("user_text", TestPackage.eINSTANCE.getUser(), TestPackage.eINSTANCE.getUser_Name());
+        try (Transaction tx = database.createTransaction("users")) {
+            database.reindex(tx);
+            for (String name: new String[] {"Ivan Petrov", "Petr Ivanov", "Ivan Sidorov"}) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName(name);
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+            }
+            tx.commit("Users created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").put("$text", "ivan");
+            finder.execute(tx);
+            Assert.assertEquals(QueryPlan.AccessPath.TEXT, finder.getPlan().getAccessPath());
+            Assert.assertEquals(2, finder.getResourceSet().getResources().size());
+
+            finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").put("$text", "IVAN, petrov");
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+            Assert.assertEquals(1, finder.getExecutionStats().get("idsLoaded").asInt());
+
+            finder = Finder.create();
+            finder.selector().with("contents").put("$text", "orlov");
+            finder.execute(tx);
+            Assert.assertEquals(1, finder.getResourceSet().getResources().size());
+        }
+        try (Transaction tx = database.createTransaction("users")) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").put("$text", "sidorov");
+            finder.execute(tx);
+            finder.getResourceSet().getResources().get(0).delete(null);
+            tx.commit("User deleted");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Finder finder = Finder.create(TestPackage.eINSTANCE.getUser());
+            finder.selector().with("contents").put("$text", "sidorov");
+            finder.execute(tx);
+            Assert.assertEquals(0, finder.getResourceSet().getResources().size());
+            Assert.assertTrue(database.findByIndex(tx, "user_text", "sidorov").isEmpty());
+        }
+    }
 }
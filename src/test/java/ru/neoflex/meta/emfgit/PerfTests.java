@@ -1,21 +1,30 @@
 package ru.neoflex.meta.emfgit;
 
+import com.beijunyi.parallelgit.filesystem.GfsObjectService;
 import org.eclipse.emf.ecore.EPackage;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.xmi.XMLResource;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.junit.Assert;
 import org.junit.Test;
-import ru.neoflex.meta.test.Group;
-import ru.neoflex.meta.test.TestFactory;
-import ru.neoflex.meta.test.TestPackage;
-import ru.neoflex.meta.test.User;
+import ru.neoflex.meta.test.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 public class PerfTests extends TestBase {
     Database database;
@@ -111,6 +120,81 @@ public class PerfTests extends TestBase {
         Assert.assertEquals(0, eCount.get());
     }
 
+    @Test
+    public void codecTest() throws IOException, GitAPIException {
+        database = refreshRatabase();
+        database.createBranch("users", "master");
+        String companyId;
+        List<String> ids = new ArrayList<>();
+        try (Transaction tx = database.createTransaction("users")) {
+            Company company = TestFactory.eINSTANCE.createCompany();
+            company.setName("Neoflex");
+            for (int i = 0; i < 100; ++i) {
+                Department department = TestFactory.eINSTANCE.createDepartment();
+                department.setName("Department_" + i);
+                company.getDepartments().add(department);
+            }
+            Resource companyResource = database.createResource(tx, null);
+            companyResource.getContents().add(company);
+            companyResource.save(null);
+            companyId = database.getResourceId(companyResource);
+            ids.add(companyId);
+            database.setDefaultCodec(database.getCodec(BinaryResourceCodec.NAME));
+            for (int i = 0; i < nUsers; ++i) {
+                User user = TestFactory.eINSTANCE.createUser();
+                user.setName("User_" + i);
+                user.setDepartment(company.getDepartments().get(i));
+                Resource userResource = database.createResource(tx, null);
+                userResource.getContents().add(user);
+                userResource.save(null);
+                ids.add(database.getResourceId(userResource));
+            }
+            tx.commit("Company and users created");
+        }
+        finally {
+            database.setDefaultCodec(database.getCodec(XmiResourceCodec.NAME));
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertTrue(database.getCodec(tx.load(new EntityId(companyId)).getContent()) instanceof XmiResourceCodec);
+            Assert.assertTrue(database.getCodec(tx.load(new EntityId(ids.get(1))).getContent()) instanceof BinaryResourceCodec);
+            User user = (User) database.loadResource(ids.get(1), tx).getContents().get(0);
+            Assert.assertEquals("Department_0", user.getDepartment().getName());
+            Resource companyResource = database.loadResource(companyId, tx);
+            int nRuns = 200;
+            // warm up first, otherwise the codec measured first pays for class loading and JIT compilation
+            for (ResourceCodec codec: database.getCodecs()) {
+                for (int i = 0; i < nRuns; ++i) {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    codec.encode(companyResource, os, null);
+                    codec.decode(os.toByteArray(), database.createResource(tx, companyId), null);
+                }
+            }
+            for (ResourceCodec codec: database.getCodecs()) {
+                byte[] content = null;
+                long start = System.nanoTime();
+                for (int i = 0; i < nRuns; ++i) {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    codec.encode(companyResource, os, null);
+                    content = os.toByteArray();
+                }
+                long encoded = System.nanoTime();
+                Resource resource = null;
+                for (int i = 0; i < nRuns; ++i) {
+                    resource = database.createResource(tx, companyId);
+                    codec.decode(content, resource, null);
+                }
+                long decoded = System.nanoTime();
+                Company company = (Company) resource.getContents().get(0);
+                Assert.assertEquals(100, company.getDepartments().size());
+                Assert.assertEquals(((XMLResource) companyResource).getID(companyResource.getContents().get(0)),
+                        ((XMLResource) resource).getID(company));
+                System.out.println(codec.getName() + ": " + content.length + " bytes, encode " +
+                        (encoded - start) / nRuns / 1000 + " us, decode " + (decoded - encoded) / nRuns / 1000 + " us");
+            }
+        }
+        database.close();
+    }
+
     public void updateTest() throws IOException, InterruptedException, GitAPIException {
         database = new Database(GITDB, new ArrayList<EPackage>(){{add(TestPackage.eINSTANCE);}});
         readIds();
@@ -155,6 +239,114 @@ public class PerfTests extends TestBase {
         System.out.println("Errors found: " + eCount.get());
     }
 
+    @Test
+    public void readerContentionTest() throws Exception {
+        database = refreshRatabase();
+        database.createBranch("users", "master");
+        int nBlobs = 100;
+        int nRounds = 20;
+        List<ObjectId> blobIds = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        try (Transaction tx = database.createTransaction("users")) {
+            Random rand = new Random(0);
+            for (int i = 0; i < nBlobs; ++i) {
+                byte[] content = new byte[256 * 1024];
+                for (int j = 0; j < content.length; ++j) {
+                    content[j] = (byte) ('a' + rand.nextInt(16));
+                }
+                contents.add(content);
+                Path path = tx.getFileSystem().getPath("/blobs/" + i);
+                Files.createDirectories(path.getParent());
+                Files.write(path, content);
+            }
+            tx.commit("Blobs created");
+        }
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            for (int i = 0; i < nBlobs; ++i) {
+                blobIds.add(Transaction.getObjectId(tx.getFileSystem().getPath("/blobs/" + i)));
+            }
+            GfsObjectService objService = tx.getFileSystem().getObjectService();
+            int nReaders = Runtime.getRuntime().availableProcessors();
+            long single = readBlobs(objService, blobIds, contents, 1, nRounds);
+            long parallel = readBlobs(objService, blobIds, contents, nReaders, nRounds);
+            double speedup = (double) single * nReaders / Math.max(parallel, 1);
+            System.out.println("Read " + nBlobs * nRounds + " blobs in 1 thread in " + single + " ms, " +
+                    nBlobs * nRounds * nReaders + " blobs in " + nReaders + " threads in " + parallel + " ms, speedup " +
+                    String.format("%.1f", speedup));
+        }
+        database.close();
+    }
+
+    @Test
+    public void parallelFlushTest() throws Exception {
+        database = refreshRatabase();
+        database.createBranch("users", "master");
+        int nFiles = 20000;
+        long single = flushFiles("single", nFiles, null);
+        ForkJoinPool flushPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        long parallel;
+        try {
+            parallel = flushFiles("parallel", nFiles, flushPool);
+        }
+        finally {
+            flushPool.shutdown();
+        }
+        System.out.println("Flushed " + nFiles + " files in 1 thread in " + single + " ms, in " +
+                flushPool.getParallelism() + " threads in " + parallel + " ms");
+        try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {
+            Assert.assertEquals("parallel 7", new String(Files.readAllBytes(tx.getFileSystem().getPath("/parallel/7/7"))));
+            try (Stream<Path> stream = Files.list(tx.getFileSystem().getPath("/parallel"))) {
+                Assert.assertEquals(64, stream.count());
+            }
+        }
+        database.close();
+    }
+
+    private long flushFiles(String dir, int nFiles, ForkJoinPool pool) throws Exception {
+        try (Transaction tx = database.createTransaction("users")) {
+            for (int i = 0; i < nFiles; ++i) {
+                Path path = tx.getFileSystem().getPath("/" + dir + "/" + (i % 64) + "/" + i);
+                Files.createDirectories(path.getParent());
+                Files.write(path, (dir + " " + i).getBytes());
+            }
+            tx.getFileSystem().setFlushPool(pool);
+            long start = System.currentTimeMillis();
+            tx.getFileSystem().flush();
+            long time = System.currentTimeMillis() - start;
+            tx.commit("Files created");
+            return time;
+        }
+    }
+
+    // every thread reads every blob nRounds times, each read must return the content that was written
+    private long readBlobs(GfsObjectService objService, List<ObjectId> blobIds, List<byte[]> contents, int nThreads, int nRounds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < nThreads; ++i) {
+                futures.add(executor.submit(() -> {
+                    int matched = 0;
+                    for (int round = 0; round < nRounds; ++round) {
+                        for (int j = 0; j < blobIds.size(); ++j) {
+                            if (Arrays.equals(contents.get(j), objService.readBlob(blobIds.get(j)).getData())) {
+                                ++matched;
+                            }
+                        }
+                    }
+                    return matched;
+                }));
+            }
+            for (Future<Integer> future: futures) {
+                Assert.assertEquals(blobIds.size() * nRounds, (int) future.get());
+            }
+            return System.currentTimeMillis() - start;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
     private void readIds() throws IOException, GitAPIException {
         groupIds.clear();
         try (Transaction tx = database.createTransaction("users", Transaction.LockType.READ)) {